@@ -0,0 +1,525 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Streaming batch driver that parses, simplifies, differentiates and
+ * evaluates lisp expressions read one record per line from a file or
+ * standard input. Each record is tab-separated:
+ *
+ *     VARS  EXPRESSION  [DIFFVAR]  [POINTS]
+ *
+ * where VARS is a comma-separated variable list, DIFFVAR is the variable
+ * to differentiate by or "-" for none, and POINTS is a semicolon-separated
+ * list of comma-separated evaluation points. Blank lines and lines
+ * starting with '#' are skipped. Each result is written as soon as it is
+ * ready, tagged with its line number, so output may be out of order:
+ *
+ *     LINE  EXPRESSION  VALUES     or     LINE  error: MESSAGE
+ *
+ * The stages run on their own worker pools connected by bounded queues,
+ * so a slow record only occupies one worker and a slow stage pushes back
+ * on its predecessors instead of buffering without limit. Records with
+ * identical variables, expression and differentiation variable are
+ * prepared once and share the compiled result, which is kept for a
+ * bounded number of recent expressions. Per-stage throughput and
+ * back-pressure are reported to standard error at the end.
+ * Usage: java Batch [-j THREADS] [FILE]
+ * @author Joey Zhu
+ */
+public class Batch {
+    /** Separators of the record format. */
+    private static final String FIELD = "\t";
+    private static final String POINT = ";";
+    private static final String COORD = ",";
+    private static final String NO_DIFF = "-";
+    private static final String COMMENT = "#";
+    /** Capacity of each queue between stages. */
+    private static final int CAPACITY = 256;
+    /** Number of prepared expressions kept for later duplicates. */
+    private static final int CACHE = 4096;
+    /** Marks the end of input on a queue. */
+    private static final Job POISON = new Job(0, null);
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String input = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-j") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                input = args[i];
+            }
+        }
+        InputStream in = (input == null || input.equals("-")) ? System.in : new FileInputStream(input);
+        Batch batch = new Batch(threads);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+             PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)))) {
+            batch.run(reader, writer);
+        }
+        batch.report(System.err);
+    }
+
+    /** A driver with stage pools sized for THREADS cores. */
+    public Batch(int threads) {
+        threads = Math.max(1, threads);
+        _parse = new Stage("parse", Math.max(1, threads / 4), this::parse);
+        _simplify = new Stage("simplify", threads, this::simplify);
+        _derive = new Stage("derive", Math.max(1, threads / 2), this::derive);
+        _eval = new Stage("eval", threads, this::evaluate);
+        _write = new Stage("write", 1, this::write);
+        _write.reportFailures();
+        _parse.connect(_simplify);
+        _simplify.connect(_derive);
+        _derive.connect(_eval);
+        _eval.connect(_write);
+    }
+
+    /** Process every record of INPUT, writing results to OUTPUT as they
+     * complete. */
+    public void run(BufferedReader input, PrintWriter output) throws Exception {
+        _output = output;
+        _start = System.nanoTime();
+        Stage[] stages = { _parse, _simplify, _derive, _eval, _write };
+        for (Stage s : stages) s.start();
+        long id = 0;
+        String line;
+        while ((line = input.readLine()) != null) {
+            id++;
+            if (line.trim().isEmpty() || line.startsWith(COMMENT)) continue;
+            long t0 = System.nanoTime();
+            _parse.in.put(new Job(id, line));
+            _readBlocked += System.nanoTime() - t0;
+            _read++;
+        }
+        _parse.in.put(POISON);
+        for (Stage s : stages) s.await();
+        output.flush();
+        _elapsed = System.nanoTime() - _start;
+    }
+
+    /** Print per-stage throughput and back-pressure to OUT. Blocked time
+     * is spent waiting for room in the next stage's queue; idle time is
+     * spent waiting for input. */
+    public void report(PrintStream out) {
+        double seconds = Math.max(_elapsed, 1) / 1e9;
+        out.printf("%d records in %.3f s, %d expressions prepared%n",
+                _read, seconds, _distinct);
+        out.printf("read: blocked %.1f ms%n", _readBlocked / 1e6);
+        out.printf("%-9s %7s %9s %10s %10s %10s %10s%n",
+                "stage", "workers", "items", "items/s", "busy ms", "blocked ms", "idle ms");
+        for (Stage s : new Stage[] { _parse, _simplify, _derive, _eval, _write }) {
+            out.printf("%-9s %7d %9d %10.0f %10.1f %10.1f %10.1f%n",
+                    s.name, s.workers, s.items.get(), s.items.get() / seconds,
+                    s.busy.get() / 1e6, s.blocked.get() / 1e6, s.idle.get() / 1e6);
+        }
+        for (Stage s : new Stage[] { _parse, _simplify, _derive, _eval, _write }) {
+            if (s.lost.get() > 0) out.printf("%s: %d records lost%n", s.name, s.lost.get());
+        }
+    }
+
+    /** Split JOB's record into fields and parse its expression, unless an
+     * identical record has been prepared, in which case JOB takes its
+     * result, or is being prepared, in which case JOB is parked until the
+     * stage finishing that record passes it on. */
+    private Job parse(Job job) throws Exception {
+        String[] fields = job.line.split(FIELD, -1);
+        if (fields.length < 2) throw new Exception("expected VARS and EXPRESSION");
+        job.vars = fields[0].trim().isEmpty() ? new String[0] : fields[0].trim().split(COORD);
+        for (int i = 0; i < job.vars.length; i++) job.vars[i] = job.vars[i].trim();
+        String expression = fields[1].trim();
+        if (fields.length > 2 && !fields[2].trim().isEmpty() && !fields[2].trim().equals(NO_DIFF)) {
+            job.diffVar = fields[2].trim();
+        }
+        job.points = fields.length > 3 ? points(fields[3], job.vars.length) : new double[0][];
+
+        String key = String.join(COORD, job.vars) + FIELD + expression + FIELD + job.diffVar;
+        Shared shared;
+        synchronized (_shared) {
+            shared = _shared.get(key);
+            if (shared == null) {
+                job.shared = new Shared();
+                _shared.put(key, job.shared);
+                _distinct++;
+            }
+        }
+        if (shared != null) {
+            if (shared.take(job)) return job;
+            _parse.block(_parked::acquire);
+            if (shared.park(job)) return null;
+            _parked.release();
+            return job;
+        }
+        if (expression.isEmpty()) throw new Exception("empty expression");
+        Function function = new Function(job.vars, expression);
+        if (function.getRoot() == null) throw new Exception("invalid expression");
+        job.function = function;
+        return job;
+    }
+
+    /** Return the evaluation points described by FIELD, each of ARITY
+     * coordinates. */
+    private static double[][] points(String field, int arity) throws Exception {
+        field = field.trim();
+        if (field.isEmpty()) return new double[0][];
+        String[] points = field.split(POINT);
+        double[][] result = new double[points.length][];
+        for (int i = 0; i < points.length; i++) {
+            String point = points[i].trim();
+            String[] coords = point.isEmpty() ? new String[0] : point.split(COORD);
+            if (coords.length != arity) throw new Exception("point " + (i + 1) + " has wrong arity");
+            result[i] = new double[arity];
+            for (int j = 0; j < arity; j++) result[i][j] = Double.parseDouble(coords[j].trim());
+        }
+        return result;
+    }
+
+    /** Simplify JOB's function, unless JOB shares a prepared result. */
+    private Job simplify(Job job) {
+        if (job.prepared != null) return job;
+        job.function.simplify();
+        return job;
+    }
+
+    /** Differentiate JOB's function if requested and compile the result,
+     * unless JOB shares a prepared result. */
+    private Job derive(Job job) throws Exception {
+        if (job.prepared != null) return job;
+        if (job.diffVar != null) job.function = Function.derivative(job.function, job.diffVar);
+        job.expression = job.function.toString();
+        job.program = job.function.compile();
+        return job;
+    }
+
+    /** Evaluate JOB's program at each of its points, giving NaN at points
+     * where it cannot be evaluated. */
+    private Job evaluate(Job job) {
+        FProgram program = job.prepared.program;
+        double[] stack = program.newStack();
+        job.values = new double[job.points.length];
+        for (int i = 0; i < job.points.length; i++) {
+            try {
+                job.values[i] = program.eval(job.points[i], stack);
+            } catch (Exception e) {
+                job.values[i] = Double.NaN;
+            }
+        }
+        return job;
+    }
+
+    /** Write JOB's result, flushing whenever the output catches up. */
+    private Job write(Job job) {
+        StringBuilder line = new StringBuilder();
+        line.append(job.id).append(FIELD);
+        if (job.error != null) {
+            line.append("error: ").append(job.error);
+        } else {
+            line.append(job.prepared.expression).append(FIELD);
+            for (int i = 0; i < job.values.length; i++) {
+                if (i > 0) line.append(COORD);
+                line.append(job.values[i]);
+            }
+        }
+        _output.println(line);
+        if (_write.in.isEmpty()) _output.flush();
+        return null;
+    }
+
+    /** One record and everything derived from it so far. */
+    private static class Job {
+        Job(long id, String line) {
+            this.id = id;
+            this.line = line;
+        }
+
+        /** The line number of the record. */
+        final long id;
+        /** The record as read. */
+        final String line;
+        /** The parsed fields. */
+        String[] vars;
+        String diffVar;
+        double[][] points;
+        /** The function after each stage, its final form and its compiled
+         * program, while this job is being prepared. */
+        Function function;
+        String expression;
+        FProgram program;
+        /** The duplicates waiting on this job, while it is being prepared. */
+        Shared shared;
+        /** The finished preparation, once this job has one. */
+        Prepared prepared;
+        /** The evaluation at each point. */
+        double[] values;
+        /** The first failure, after which stages pass the job through. */
+        String error;
+    }
+
+    /** The finished preparation of a record, holding only what its
+     * duplicates need. */
+    private static class Prepared {
+        Prepared(Job job) {
+            expression = job.error == null ? job.expression : null;
+            program = job.error == null ? job.program : null;
+            error = job.error;
+        }
+
+        /** The prepared expression and its compiled program, or the failure. */
+        final String expression;
+        final FProgram program;
+        final String error;
+    }
+
+    /** The preparation of a distinct record, which duplicates either take
+     * once it has finished or are parked on until then. */
+    private static class Shared {
+        /** Give JOB the finished preparation and return true, or return
+         * false if it has not finished. */
+        synchronized boolean take(Job job) {
+            if (_result == null) return false;
+            job.prepared = _result;
+            job.error = _result.error;
+            return true;
+        }
+
+        /** Park JOB until the preparation finishes and return true, or give
+         * JOB the preparation and return false if it already has. */
+        synchronized boolean park(Job job) {
+            if (take(job)) return false;
+            _waiting.add(job);
+            return true;
+        }
+
+        /** Finish with RESULT and return the jobs parked until now. */
+        synchronized List<Job> finish(Prepared result) {
+            _result = result;
+            List<Job> waiting = _waiting;
+            _waiting = null;
+            return waiting;
+        }
+
+        /** The finished preparation, or null. */
+        private Prepared _result;
+        /** The parked duplicates, until the preparation finishes. */
+        private List<Job> _waiting = new ArrayList<>();
+    }
+
+    /** Work that may wait for room downstream. */
+    private interface Blocking {
+        void run() throws InterruptedException;
+    }
+
+    /** A processing step of a stage. Returning null drops the job. */
+    private interface Step {
+        Job apply(Job job) throws Exception;
+    }
+
+    /** A pool of workers taking jobs from a bounded input queue, applying
+     * a step and passing the results to the next stage. Jobs that have
+     * failed skip the step, unless the stage reports failures. The stage
+     * that finishes a job's preparation, by compiling or failing, passes
+     * on the duplicates parked on it too. A job that cannot be passed on
+     * is counted as lost rather than ending its worker, and a worker that
+     * ends anyway still counts as having seen the end of input, so the
+     * pipeline drains. */
+    private class Stage {
+        Stage(String name, int workers, Step step) {
+            this.name = name;
+            this.workers = workers;
+            _step = step;
+            in = new ArrayBlockingQueue<>(CAPACITY);
+        }
+
+        /** Apply the step to failed jobs too. */
+        void reportFailures() {
+            _failures = true;
+        }
+
+        /** Send this stage's output to NEXT. */
+        void connect(Stage next) {
+            _next = next;
+        }
+
+        /** Start the workers. */
+        void start() {
+            _pool = Executors.newFixedThreadPool(workers);
+            for (int i = 0; i < workers; i++) _pool.execute(this::work);
+        }
+
+        /** Wait until every worker has seen the end of input. */
+        void await() throws InterruptedException {
+            _pool.shutdown();
+            _pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        /** Run WAIT from within the step, counting its time as blocked
+         * rather than busy. */
+        void block(Blocking wait) throws InterruptedException {
+            long t0 = System.nanoTime();
+            try {
+                wait.run();
+            } finally {
+                long waited = System.nanoTime() - t0;
+                blocked.addAndGet(waited);
+                _waited.set(_waited.get() + waited);
+            }
+        }
+
+        /** The loop run by each worker. */
+        private void work() {
+            try {
+                while (true) {
+                    long t0 = System.nanoTime();
+                    Job job = in.take();
+                    long t1 = System.nanoTime();
+                    idle.addAndGet(t1 - t0);
+                    if (job == POISON) {
+                        in.put(POISON);
+                        return;
+                    }
+                    _waited.set(0L);
+                    if (job.error == null || _failures) {
+                        Job result = job;
+                        try {
+                            result = _step.apply(job);
+                        } catch (InterruptedException e) {
+                            throw e;
+                        } catch (Throwable e) {
+                            job.error = e.getMessage() == null ? e.toString() : e.getMessage();
+                        }
+                        job = result;
+                    }
+                    items.incrementAndGet();
+                    try {
+                        List<Job> parked = null;
+                        if (job != null && job.shared != null
+                                && (job.error != null || job.program != null)) {
+                            parked = finish(job);
+                        }
+                        long t2 = System.nanoTime();
+                        busy.addAndGet(t2 - t1 - _waited.get());
+                        if (job != null) forward(job);
+                        if (parked != null) {
+                            for (Job duplicate : parked) {
+                                _parked.release();
+                                forward(duplicate);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Throwable e) {
+                        lost.incrementAndGet();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (_finished.incrementAndGet() == workers && _next != null) _next.end();
+            }
+        }
+
+        /** Give JOB its finished preparation, share it with the cache and
+         * return the duplicates parked on it. */
+        private List<Job> finish(Job job) {
+            Prepared result = new Prepared(job);
+            List<Job> parked = job.shared.finish(result);
+            job.shared = null;
+            job.function = null;
+            job.program = null;
+            job.prepared = result;
+            for (Job duplicate : parked) {
+                duplicate.prepared = result;
+                duplicate.error = result.error;
+            }
+            return parked;
+        }
+
+        /** Pass JOB to the next stage, counting the wait as blocked. */
+        private void forward(Job job) throws InterruptedException {
+            if (_next == null) return;
+            long t0 = System.nanoTime();
+            _next.in.put(job);
+            blocked.addAndGet(System.nanoTime() - t0);
+        }
+
+        /** Mark the end of input on this stage's queue, even if interrupted,
+         * so that the workers always finish. */
+        private void end() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    in.put(POISON);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        /** The name shown in reports. */
+        final String name;
+        /** The number of workers. */
+        final int workers;
+        /** The input queue. */
+        final BlockingQueue<Job> in;
+        /** Jobs processed, and nanoseconds spent working, waiting for room
+         * downstream and waiting for input, summed over workers. */
+        final AtomicLong items = new AtomicLong();
+        final AtomicLong busy = new AtomicLong();
+        final AtomicLong blocked = new AtomicLong();
+        final AtomicLong idle = new AtomicLong();
+        /** Jobs that could not be passed on, so are missing from the output. */
+        final AtomicLong lost = new AtomicLong();
+        /** The step applied to each job. */
+        private final Step _step;
+        /** Whether failed jobs are passed to the step. */
+        private boolean _failures;
+        /** The stage receiving this stage's output. */
+        private Stage _next;
+        /** The worker threads. */
+        private ExecutorService _pool;
+        /** The number of workers that have seen the end of input. */
+        private final AtomicInteger _finished = new AtomicInteger();
+        /** Nanoseconds the current worker's step has spent blocked. */
+        private final ThreadLocal<Long> _waited = ThreadLocal.withInitial(() -> 0L);
+    }
+
+    /** The stages, in pipeline order. */
+    private final Stage _parse, _simplify, _derive, _eval, _write;
+    /** The preparation of recent distinct records, shared by their
+     * duplicates, least recently used first. Evicted records are prepared
+     * again if they recur. */
+    private final Map<String, Shared> _shared = new LinkedHashMap<String, Shared>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Shared> eldest) {
+            return size() > CACHE;
+        }
+    };
+    /** Permits for duplicates parked on a record still being prepared. */
+    private final Semaphore _parked = new Semaphore(CAPACITY);
+    /** The number of records prepared, guarded by _shared. */
+    private long _distinct;
+    /** Where results are written. */
+    private PrintWriter _output;
+    /** Records read, and nanoseconds the reader waited on the parse queue. */
+    private long _read, _readBlocked;
+    /** Start time and duration of the run, in nanoseconds. */
+    private long _start, _elapsed;
+}
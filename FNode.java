@@ -189,7 +189,7 @@ public class FNode {
                 node.set(addReduce(factors, count, 0));
             } else if (node.getToken().equals(SUB_TOKEN)) {
                 count.add(0.0);
-                coef = addFlatten(node, factors, count, false);
+                coef = addFlatten(node, factors, count, true);
                 count.set(0, coef);
                 node.set(addReduce(factors, count, 0));
             } else if (node.getToken().equals(MUL_TOKEN)) {
@@ -200,7 +200,7 @@ public class FNode {
                 //TODO: collapse terms of e^x
             } else if (node.getToken().equals(DIV_TOKEN)) {
                 count.add(1.0);
-                coef = mulFlatten(node, factors, count, false);
+                coef = mulFlatten(node, factors, count, true);
                 factors.set(0, new FNode(coef.toString()));
                 node.set(mulReduce(factors, count, 0));
             }
@@ -261,8 +261,8 @@ public class FNode {
             } else if (node.getToken().equals(DIV_TOKEN)) {
                 Optional<Double> possibleCoef = extract(node.getLeft());
                 if (possibleCoef.isPresent()) {
-                    newCoef *= 1 / possibleCoef.get();
-                    factor = node.getRight();
+                    newCoef *= possibleCoef.get();
+                    factor = new FNode(POW_TOKEN, node.getRight(), new FNode("-1.0"));
                 }
             }
             Optional<Double> possibleCoef = extract(factor);
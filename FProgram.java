@@ -0,0 +1,283 @@
+import java.util.IdentityHashMap;
+
+/** One or more expression trees flattened into a single postfix program
+ * of primitive operations. Compiling once and evaluating the program
+ * avoids the token comparisons and recursion of Function.eval, which
+ * makes it the preferred path for evaluating the same expressions at
+ * many points. Subtrees shared between the trees, as derivatives share
+ * them with the original function, are evaluated only once.
+ * @author Joey Zhu
+ */
+public class FProgram {
+    /** Standard lisp tokens for function input. */
+    private static final String ADD_TOKEN = "+";
+    private static final String SUB_TOKEN = "-";
+    private static final String MUL_TOKEN = "*";
+    private static final String DIV_TOKEN = "/";
+    private static final String POW_TOKEN = "pow";
+    private static final String EXP_TOKEN = "e^";
+    private static final String LOG_TOKEN = "ln";
+    private static final String SIN_TOKEN = "sin";
+    private static final String COS_TOKEN = "cos";
+    private static final String SQR_TOKEN = "sqrt";
+
+    /** Opcodes of the compiled program. */
+    private static final int CONST = 0;
+    private static final int VAR = 1;
+    private static final int ADD = 2;
+    private static final int SUB = 3;
+    private static final int MUL = 4;
+    private static final int DIV = 5;
+    private static final int POW = 6;
+    private static final int EXP = 7;
+    private static final int LOG = 8;
+    private static final int SIN = 9;
+    private static final int COS = 10;
+    private static final int SQR = 11;
+    private static final int LOAD = 12;
+    private static final int STORE = 13;
+    private static final int OUT = 14;
+
+    /** Compile the expression trees ROOTS, whose leaves may refer to VARS,
+     * into one program with an output per root. */
+    public FProgram(String[] vars, FNode... roots) throws Exception {
+        _vars = vars;
+        _outputs = roots.length;
+        IdentityHashMap<FNode, Integer> refs = new IdentityHashMap<>();
+        int size = roots.length;
+        for (FNode root : roots) size += count(root, refs);
+        _ops = new int[size];
+        _consts = new double[size];
+        _slots = new int[size];
+        _registers = new IdentityHashMap<>();
+        _shared = refs;
+        int depth = 0;
+        for (FNode root : roots) depth = Math.max(depth, emitRoot(root));
+        _depth = depth;
+        for (int i = 0; i < _length; i++) {
+            if (_ops[i] == OUT) _slots[i] += _depth;
+            else if (_ops[i] == LOAD || _ops[i] == STORE) _slots[i] += _depth + _outputs;
+        }
+        _scratch = _depth + _outputs + _registers.size();
+        _registers = null;
+        _shared = null;
+    }
+
+    /** Return the number of input variables this program takes. */
+    public int arity() {
+        return _vars.length;
+    }
+
+    /** Return the number of outputs this program produces. */
+    public int outputs() {
+        return _outputs;
+    }
+
+    /** Return scratch space large enough for evaluating this program. */
+    public double[] newStack() {
+        return new double[_scratch];
+    }
+
+    /** Return the first output at VARS. */
+    public double eval(double[] vars) throws Exception {
+        return eval(vars, newStack());
+    }
+
+    /** Return the first output at VARS, using STACK as scratch space so
+     * that no memory is allocated. STACK must come from newStack. */
+    public double eval(double[] vars, double[] stack) throws Exception {
+        run(vars, stack);
+        return stack[_depth];
+    }
+
+    /** Write every output at VARS into OUT, using STACK as scratch space
+     * so that no memory is allocated. STACK must come from newStack. */
+    public void eval(double[] vars, double[] stack, double[] out) throws Exception {
+        run(vars, stack);
+        System.arraycopy(stack, _depth, out, 0, _outputs);
+    }
+
+    /** Evaluate at each row of POINTS, writing the first output into OUT. */
+    public void eval(double[][] points, double[] out) throws Exception {
+        double[] stack = newStack();
+        for (int i = 0; i < points.length; i++) {
+            out[i] = eval(points[i], stack);
+        }
+    }
+
+    /** Execute the program at VARS, leaving the outputs in STACK just
+     * above the evaluation stack. */
+    private void run(double[] vars, double[] stack) throws Exception {
+        int sp = 0;
+        double a;
+        for (int i = 0; i < _length; i++) {
+            switch (_ops[i]) {
+                case CONST:
+                    stack[sp++] = _consts[i];
+                    break;
+                case VAR:
+                    stack[sp++] = vars[_slots[i]];
+                    break;
+                case LOAD:
+                    stack[sp++] = stack[_slots[i]];
+                    break;
+                case STORE:
+                    stack[_slots[i]] = stack[sp - 1];
+                    break;
+                case OUT:
+                    stack[_slots[i]] = stack[--sp];
+                    break;
+                case ADD:
+                    a = stack[--sp];
+                    stack[sp - 1] += a;
+                    break;
+                case SUB:
+                    a = stack[--sp];
+                    stack[sp - 1] -= a;
+                    break;
+                case MUL:
+                    a = stack[--sp];
+                    stack[sp - 1] *= a;
+                    break;
+                case DIV:
+                    a = stack[--sp];
+                    if (a == 0) throw new Exception("Divide by zero");
+                    stack[sp - 1] /= a;
+                    break;
+                case POW:
+                    a = stack[--sp];
+                    stack[sp - 1] = Math.pow(stack[sp - 1], a);
+                    break;
+                case EXP:
+                    stack[sp - 1] = Math.exp(stack[sp - 1]);
+                    break;
+                case LOG:
+                    if (stack[sp - 1] <= 0) throw new Exception("Log by zero");
+                    stack[sp - 1] = Math.log(stack[sp - 1]);
+                    break;
+                case SIN:
+                    stack[sp - 1] = Math.sin(stack[sp - 1]);
+                    break;
+                case COS:
+                    stack[sp - 1] = Math.cos(stack[sp - 1]);
+                    break;
+                case SQR:
+                    if (stack[sp - 1] <= 0) throw new Exception("Sqrt by zero");
+                    stack[sp - 1] = Math.sqrt(stack[sp - 1]);
+                    break;
+                default:
+                    throw new Exception("Invalid opcode");
+            }
+        }
+    }
+
+    /** Count the references to each operation node under NODE in REFS and
+     * return an upper bound on the instructions needed for first visits. */
+    private static int count(FNode node, IdentityHashMap<FNode, Integer> refs) {
+        if (node == null) return 0;
+        if (node.isAtom()) return 1;
+        Integer seen = refs.get(node);
+        refs.put(node, seen == null ? 1 : seen + 1);
+        if (seen != null) return 1;
+        return 2 + count(node.getLeft(), refs) + count(node.getRight(), refs);
+    }
+
+    /** Append the postfix instructions for ROOT followed by its output. */
+    private int emitRoot(FNode root) throws Exception {
+        int depth = emit(root, 0);
+        _ops[_length] = OUT;
+        _slots[_length++] = _outputsEmitted++;
+        return depth;
+    }
+
+    /** Append the postfix instructions for NODE, given that DEPTH values
+     * are already on the stack, and return the maximum stack depth.
+     * Shared nodes are stored in a register on first visit and loaded
+     * from it afterwards. */
+    private int emit(FNode node, int depth) throws Exception {
+        Integer register = _registers.get(node);
+        if (register != null) {
+            _ops[_length] = LOAD;
+            _slots[_length++] = register;
+            return depth + 1;
+        }
+        int max;
+        if (node.isAtom()) {
+            int slot = index(node.getToken());
+            if (slot == -1) {
+                _ops[_length] = CONST;
+                _consts[_length] = Double.parseDouble(node.getToken());
+            } else {
+                _ops[_length] = VAR;
+                _slots[_length] = slot;
+            }
+            _length++;
+            return depth + 1;
+        } else if (node.isUnary()) {
+            max = emit(node.getLeft(), depth);
+            _ops[_length++] = unaryOp(node.getToken());
+        } else {
+            max = emit(node.getLeft(), depth);
+            max = Math.max(max, emit(node.getRight(), depth + 1));
+            _ops[_length++] = binaryOp(node.getToken());
+        }
+        if (_shared.get(node) > 1) {
+            register = _registers.size();
+            _registers.put(node, register);
+            _ops[_length] = STORE;
+            _slots[_length++] = register;
+        }
+        return max;
+    }
+
+    /** Return the opcode of unary TOKEN. */
+    private static int unaryOp(String token) throws Exception {
+        if (token.equals(EXP_TOKEN)) return EXP;
+        else if (token.equals(LOG_TOKEN)) return LOG;
+        else if (token.equals(SIN_TOKEN)) return SIN;
+        else if (token.equals(COS_TOKEN)) return COS;
+        else if (token.equals(SQR_TOKEN)) return SQR;
+        else throw new Exception("Invalid unary function");
+    }
+
+    /** Return the opcode of binary TOKEN. */
+    private static int binaryOp(String token) throws Exception {
+        if (token.equals(ADD_TOKEN)) return ADD;
+        else if (token.equals(SUB_TOKEN)) return SUB;
+        else if (token.equals(MUL_TOKEN)) return MUL;
+        else if (token.equals(DIV_TOKEN)) return DIV;
+        else if (token.equals(POW_TOKEN)) return POW;
+        else throw new Exception("Invalid binary function");
+    }
+
+    /** Return the array index of VAR, or -1 if it is not a variable. */
+    private int index(String var) {
+        for (int i = 0; i < _vars.length; i++) {
+            if (_vars[i].equals(var)) return i;
+        }
+        return -1;
+    }
+
+    /** The input variables which this program takes. */
+    private final String[] _vars;
+    /** The opcode of each instruction. */
+    private final int[] _ops;
+    /** The operand of each CONST instruction. */
+    private final double[] _consts;
+    /** The variable index of each VAR instruction. */
+    private final int[] _slots;
+    /** The number of instructions emitted. */
+    private int _length;
+    /** The number of outputs emitted so far while compiling. */
+    private int _outputsEmitted;
+    /** The maximum stack depth reached during evaluation. */
+    private final int _depth;
+    /** The number of outputs. */
+    private final int _outputs;
+    /** The length of the scratch space needed for evaluation. */
+    private final int _scratch;
+    /** The register holding each shared node, only while compiling. */
+    private IdentityHashMap<FNode, Integer> _registers;
+    /** The reference count of each operation node, only while compiling. */
+    private IdentityHashMap<FNode, Integer> _shared;
+}
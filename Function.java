@@ -5,7 +5,8 @@ import java.util.Optional;
 /** Class that handles evaluation, composition, and
  * differentiation of lisp expression inputs of multiple
  * variables. Simplification and optimization only supported
- * for single-variable equations.
+ * for single-variable equations, though polynomials of several
+ * variables can be expanded.
  * @author Joey Zhu
  */
 public class Function {
@@ -49,6 +50,12 @@ public class Function {
         _vars = vars;
     }
 
+    /** Initialize a function w.r.t. VARS with expression tree ROOT. */
+    public Function(String[] vars, FNode root) {
+        _vars = vars;
+        _root = root;
+    }
+
     /** Initialize a no-variable expression to be evaluated. Only used
      * when collapsing atomic expressions to simplify. */
     public Function(FNode root) {
@@ -109,7 +116,7 @@ public class Function {
         } else if (tokens.size() == 1) {
             return new FNode(tokens.get(0), null, null);
         } else {
-            System.out.println("too many tokens");
+            System.err.println("too many tokens");
             return null;
         }
     }
@@ -160,6 +167,18 @@ public class Function {
         }
     }
 
+    /** Evaluate this function at each row of POINTS, writing the
+     * results into OUT. */
+    public void eval(double[][] points, double[] out) throws Exception {
+        compile().eval(points, out);
+    }
+
+    /** Return this function's expression tree compiled into a postfix
+     * program. Recompile after simplify or transform. */
+    public FProgram compile() throws Exception {
+        return new FProgram(_vars, _root);
+    }
+
 
     public void simplify() {
         _root.pushCoefs();
@@ -168,6 +187,13 @@ public class Function {
         _root.primarySimplify();
     }
 
+    /** Multiply out this function into a sum of monomials. Only
+     * polynomial functions, built from +, -, *, division by constants
+     * and non-negative integer powers, can be expanded. */
+    public void expand() throws Exception {
+        _root = new Polynomial(this).toNode();
+    }
+
     /** Return this Function's partial derivative as another object
      *  w.r.t. variable X. */
     public static Function derivative(Function f, String x) {
@@ -0,0 +1,386 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+/** Numerical integration of Functions. Integrals over an interval use
+ * globally adaptive Gauss-Kronrod (7-15) quadrature, which repeatedly
+ * bisects the subintervals with the largest error estimate. Integrals
+ * over boxes use randomized quasi-Monte Carlo on a Sobol sequence, with
+ * the spread between independently scrambled replicates giving the
+ * error estimate. All evaluation goes through a compiled FProgram, and
+ * subinterval and replicate work is spread across the common pool.
+ * @author Joey Zhu
+ */
+public class Integrator {
+    /** Abscissae of the 15-point Kronrod rule on [-1, 1]. The odd
+     * entries are the abscissae of the embedded 7-point Gauss rule. */
+    private static final double[] XGK = {
+        0.991455371120812639206854697526329,
+        0.949107912342758524526189684047851,
+        0.864864423359769072789712788640926,
+        0.741531185599394439863864773280788,
+        0.586087235467691130294144845693013,
+        0.405845151377397166906606412076961,
+        0.207784955007898467600689403773245,
+        0.000000000000000000000000000000000
+    };
+    /** Weights of the 15-point Kronrod rule. */
+    private static final double[] WGK = {
+        0.022935322010529224963732008058970,
+        0.063092092629978553290700663189204,
+        0.104790010322250183839876322541518,
+        0.140653259715525918745189590510238,
+        0.169004726639267902826583426598550,
+        0.190350578064785409913256402421014,
+        0.204432940075298892414161999234649,
+        0.209482141084727828012999174891714
+    };
+    /** Weights of the 7-point Gauss rule. */
+    private static final double[] WG = {
+        0.129484966168869693270611432679082,
+        0.279705391489276667901467771423780,
+        0.381830050505118944950369775488975,
+        0.417959183673469387755102040816327
+    };
+    /** Number of abscissae of the Kronrod rule. */
+    private static final int KRONROD_POINTS = 15;
+
+    /** Default relative tolerance. */
+    private static final double REL_TOL = 1e-10;
+    /** Maximum number of subintervals before giving up on 1D integrals. */
+    private static final int MAX_SEGMENTS = 20000;
+
+    /** Number of independently scrambled Sobol replicates. */
+    private static final int REPLICATES = 8;
+    /** Points per replicate in the first quasi-Monte Carlo round. */
+    private static final int INITIAL_POINTS = 1024;
+    /** Maximum points per replicate before giving up on box integrals. */
+    private static final int MAX_POINTS = 1 << 22;
+    /** Number of points evaluated per batch. */
+    private static final int BATCH = 256;
+    /** Seed for the scrambling shifts, so results are reproducible. */
+    private static final long SEED = 0x5DEECE66DL;
+
+    /** Primitive polynomial degree S, coefficients A and initial direction
+     * numbers M of Sobol dimensions 2 and up, as {S, A, M1, ..., MS}
+     * (Joe and Kuo). Dimension 1 is the van der Corput sequence. */
+    private static final int[][] SOBOL = {
+        {1, 0, 1},
+        {2, 1, 1, 3},
+        {3, 1, 1, 3, 1},
+        {3, 2, 1, 1, 1},
+        {4, 1, 1, 1, 3, 3},
+        {4, 4, 1, 3, 5, 13},
+        {5, 2, 1, 1, 5, 5, 17},
+        {5, 4, 1, 1, 5, 5, 5},
+        {5, 7, 1, 1, 7, 11, 19},
+        {5, 11, 1, 1, 5, 1, 1},
+        {5, 13, 1, 1, 1, 3, 11},
+        {5, 14, 1, 3, 5, 5, 31},
+        {6, 1, 1, 3, 3, 9, 7, 49},
+        {6, 13, 1, 1, 1, 15, 21, 21},
+        {6, 16, 1, 3, 1, 13, 27, 49}
+    };
+    /** Number of bits of each Sobol coordinate. */
+    private static final int BITS = 32;
+
+    /** Return the integral of single-variable F over [A, B] to within
+     * absolute tolerance TOL or the default relative tolerance. */
+    public static Result integrate(Function f, double a, double b, double tol) throws Exception {
+        return integrate(f, a, b, tol, REL_TOL);
+    }
+
+    /** Return the integral of single-variable F over [A, B] to within
+     * absolute tolerance ABSTOL or relative tolerance RELTOL. */
+    public static Result integrate(Function f, double a, double b,
+                                   double absTol, double relTol) throws Exception {
+        if (f.getVars().length != 1) throw new Exception("Dimension mismatch");
+        if (a == b) return new Result(0, 0, 0, true);
+        if (a > b) {
+            Result r = integrate(f, b, a, absTol, relTol);
+            return new Result(-r.getValue(), r.getError(), r.getEvaluations(), r.isConverged());
+        }
+        FProgram program = f.compile();
+        PriorityQueue<Segment> segments = new PriorityQueue<>();
+        Segment first = new Segment(a, b);
+        first.evaluate(program, program.newStack());
+        segments.add(first);
+        double value = first.value;
+        double error = first.error;
+        long evaluations = KRONROD_POINTS;
+        int width = 2 * ForkJoinPool.getCommonPoolParallelism();
+
+        while (error > Math.max(absTol, relTol * Math.abs(value))) {
+            if (!Double.isFinite(value) || !Double.isFinite(error)
+                    || segments.size() >= MAX_SEGMENTS) {
+                return new Result(value, error, evaluations, false);
+            }
+            List<Segment> children = new ArrayList<>();
+            boolean stuck = false;
+            while (!segments.isEmpty() && children.size() < width) {
+                Segment worst = segments.poll();
+                double mid = 0.5 * (worst.lower + worst.upper);
+                if (mid <= worst.lower || mid >= worst.upper) {
+                    /* Interval can no longer be bisected in double precision;
+                     * keep it and finish the segments already split. */
+                    segments.add(worst);
+                    stuck = true;
+                    break;
+                }
+                value -= worst.value;
+                error -= worst.error;
+                children.add(new Segment(worst.lower, mid));
+                children.add(new Segment(mid, worst.upper));
+            }
+            evaluateAll(program, children);
+            for (Segment s : children) {
+                value += s.value;
+                error += s.error;
+                segments.add(s);
+            }
+            evaluations += (long) KRONROD_POINTS * children.size();
+            if (error < 0) {
+                /* Re-sum to shed the drift of repeated subtraction. */
+                error = 0;
+                for (Segment s : segments) error += s.error;
+            }
+            if (stuck) return new Result(value, error, evaluations, false);
+        }
+        if (!Double.isFinite(value) || !Double.isFinite(error)) {
+            return new Result(value, error, evaluations, false);
+        }
+        return new Result(value, error, evaluations, true);
+    }
+
+    /** Return the integral of F over the box spanned by LOWER and UPPER,
+     * whose dimension is F's number of variables, to within absolute
+     * tolerance TOL or the default relative tolerance. */
+    public static Result integrate(Function f, double[] lower, double[] upper, double tol) throws Exception {
+        return integrate(f, lower, upper, tol, REL_TOL);
+    }
+
+    /** Return the integral of F over the box spanned by LOWER and UPPER
+     * to within absolute tolerance ABSTOL or relative tolerance RELTOL.
+     * The error of a box integral is a standard error estimate. */
+    public static Result integrate(Function f, double[] lower, double[] upper,
+                                   double absTol, double relTol) throws Exception {
+        int dims = f.getVars().length;
+        if (lower.length != dims || upper.length != dims) {
+            throw new Exception("Dimension mismatch");
+        }
+        if (dims == 1) return integrate(f, lower[0], upper[0], absTol, relTol);
+        if (dims > SOBOL.length + 1) throw new Exception("Too many dimensions");
+        double volume = 1;
+        for (int d = 0; d < dims; d++) volume *= upper[d] - lower[d];
+        if (volume == 0) return new Result(0, 0, 0, true);
+
+        FProgram program = f.compile();
+        int[][] directions = directions(dims);
+        SplittableRandom random = new SplittableRandom(SEED);
+        List<Sobol> replicates = new ArrayList<>();
+        for (int r = 0; r < REPLICATES; r++) {
+            replicates.add(new Sobol(directions, random, lower, upper));
+        }
+
+        int points = INITIAL_POINTS;
+        while (true) {
+            sampleAll(program, replicates, points);
+            double mean = 0;
+            for (Sobol s : replicates) mean += s.mean();
+            mean /= REPLICATES;
+            double variance = 0;
+            for (Sobol s : replicates) {
+                variance += (s.mean() - mean) * (s.mean() - mean);
+            }
+            variance /= REPLICATES - 1;
+            double value = volume * mean;
+            double error = Math.abs(volume) * Math.sqrt(variance / REPLICATES);
+            long evaluations = (long) REPLICATES * replicates.get(0).count;
+            boolean converged = error <= Math.max(absTol, relTol * Math.abs(value))
+                    && Double.isFinite(value);
+            if (converged || !Double.isFinite(value) || !Double.isFinite(error)
+                    || replicates.get(0).count >= MAX_POINTS) {
+                return new Result(value, error, evaluations, converged);
+            }
+            /* Double the sample size each round, which keeps the replicates
+             * on balanced power-of-two prefixes of the sequence. */
+            points = (int) replicates.get(0).count;
+        }
+    }
+
+    /** Evaluate every segment in SEGMENTS with PROGRAM, in parallel. */
+    private static void evaluateAll(FProgram program, List<Segment> segments) throws Exception {
+        Parallel.forRange(segments.size(), (from, to) -> {
+            double[] stack = program.newStack();
+            for (int i = from; i < to; i++) segments.get(i).evaluate(program, stack);
+        });
+    }
+
+    /** Advance every replicate in REPLICATES by POINTS samples of PROGRAM,
+     * in parallel. */
+    private static void sampleAll(FProgram program, List<Sobol> replicates, int points) throws Exception {
+        Parallel.forRange(replicates.size(), (from, to) -> {
+            for (int i = from; i < to; i++) replicates.get(i).sample(program, points);
+        });
+    }
+
+    /** Return the Sobol direction numbers of the first DIMS dimensions. */
+    private static int[][] directions(int dims) {
+        int[][] v = new int[dims][BITS];
+        for (int k = 0; k < BITS; k++) {
+            v[0][k] = 1 << (BITS - 1 - k);
+        }
+        for (int d = 1; d < dims; d++) {
+            int[] row = SOBOL[d - 1];
+            int s = row[0];
+            int a = row[1];
+            for (int k = 0; k < s; k++) {
+                v[d][k] = row[2 + k] << (BITS - 1 - k);
+            }
+            for (int k = s; k < BITS; k++) {
+                v[d][k] = v[d][k - s] ^ (v[d][k - s] >>> s);
+                for (int i = 1; i < s; i++) {
+                    if (((a >>> (s - 1 - i)) & 1) == 1) v[d][k] ^= v[d][k - i];
+                }
+            }
+        }
+        return v;
+    }
+
+    /** The outcome of an integration. */
+    public static class Result {
+        /** A result of VALUE with estimated absolute ERROR, obtained from
+         * EVALUATIONS integrand evaluations. CONVERGED iff the requested
+         * tolerance was met. */
+        public Result(double value, double error, long evaluations, boolean converged) {
+            _value = value;
+            _error = error;
+            _evaluations = evaluations;
+            _converged = converged;
+        }
+
+        public double getValue() {
+            return _value;
+        }
+        public double getError() {
+            return _error;
+        }
+        public long getEvaluations() {
+            return _evaluations;
+        }
+        /** Return true iff the requested tolerance was met. */
+        public boolean isConverged() {
+            return _converged;
+        }
+
+        @Override
+        public String toString() {
+            return _value + " +/- " + _error + " (" + _evaluations + " evaluations"
+                    + (_converged ? ")" : ", not converged)");
+        }
+
+        /** The estimated integral. */
+        private final double _value;
+        /** The estimated absolute error. */
+        private final double _error;
+        /** The number of integrand evaluations used. */
+        private final long _evaluations;
+        /** Whether the requested tolerance was met. */
+        private final boolean _converged;
+    }
+
+    /** A subinterval of a 1D integral, ordered by decreasing error. */
+    private static class Segment implements Comparable<Segment> {
+        Segment(double lower, double upper) {
+            this.lower = lower;
+            this.upper = upper;
+        }
+
+        /** Apply the Gauss-Kronrod rule to this segment with PROGRAM,
+         * using STACK as scratch space. */
+        void evaluate(FProgram program, double[] stack) throws Exception {
+            double center = 0.5 * (lower + upper);
+            double half = 0.5 * (upper - lower);
+            double[] point = new double[1];
+            point[0] = center;
+            double fc = program.eval(point, stack);
+            double kronrod = WGK[7] * fc;
+            double gauss = WG[3] * fc;
+            for (int j = 0; j < 7; j++) {
+                point[0] = center - half * XGK[j];
+                double f1 = program.eval(point, stack);
+                point[0] = center + half * XGK[j];
+                double f2 = program.eval(point, stack);
+                kronrod += WGK[j] * (f1 + f2);
+                if (j % 2 == 1) gauss += WG[j / 2] * (f1 + f2);
+            }
+            value = half * kronrod;
+            error = Math.abs(half * (kronrod - gauss));
+        }
+
+        @Override
+        public int compareTo(Segment other) {
+            return Double.compare(other.error, error);
+        }
+
+        /** The endpoints of this segment. */
+        final double lower, upper;
+        /** The Kronrod estimate and its error on this segment. */
+        double value, error;
+    }
+
+    /** One randomly shifted replicate of a Sobol sequence mapped onto a box,
+     * with the running sum of the integrand over the points drawn so far. */
+    private static class Sobol {
+        Sobol(int[][] directions, SplittableRandom random, double[] lower, double[] upper) {
+            _directions = directions;
+            _lower = lower;
+            _upper = upper;
+            _x = new int[directions.length];
+            _shift = new int[directions.length];
+            for (int d = 0; d < _shift.length; d++) _shift[d] = random.nextInt();
+        }
+
+        /** Draw the next COUNT points and add PROGRAM's values to the sum. */
+        void sample(FProgram program, int count) throws Exception {
+            int dims = _x.length;
+            double[][] points = new double[BATCH][dims];
+            double[] stack = program.newStack();
+            for (int done = 0; done < count; done += BATCH) {
+                int n = Math.min(BATCH, count - done);
+                for (int i = 0; i < n; i++) {
+                    for (int d = 0; d < dims; d++) {
+                        double u = ((_x[d] ^ _shift[d]) & 0xFFFFFFFFL) * 0x1p-32;
+                        points[i][d] = _lower[d] + u * (_upper[d] - _lower[d]);
+                    }
+                    int c = Integer.numberOfTrailingZeros(~(int) this.count);
+                    for (int d = 0; d < dims; d++) _x[d] ^= _directions[d][c];
+                    this.count++;
+                }
+                for (int i = 0; i < n; i++) {
+                    _sum += program.eval(points[i], stack);
+                }
+            }
+        }
+
+        /** Return the mean of the integrand over the points drawn so far. */
+        double mean() {
+            return _sum / count;
+        }
+
+        /** The number of points drawn so far. */
+        long count;
+        /** Direction numbers, per dimension and bit. */
+        private final int[][] _directions;
+        /** The box being sampled. */
+        private final double[] _lower, _upper;
+        /** The current unshifted point, as 32-bit fixed-point coordinates. */
+        private final int[] _x;
+        /** The random digital shift of this replicate. */
+        private final int[] _shift;
+        /** The sum of the integrand over the points drawn so far. */
+        private double _sum;
+    }
+}
@@ -0,0 +1,106 @@
+/** An open-addressing hash map from primitive long keys to primitive
+ * double values, used to accumulate polynomial terms without boxing.
+ * @author Joey Zhu
+ */
+class LongDoubleMap {
+    /** Smallest table capacity. */
+    private static final int MIN_CAPACITY = 16;
+
+    /** An empty map sized for about EXPECTED keys. */
+    LongDoubleMap(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * expected) capacity <<= 1;
+        allocate(capacity);
+    }
+
+    /** Return the number of keys. */
+    int size() {
+        return _size;
+    }
+
+    /** Return the value of KEY, or 0 if absent. */
+    double get(long key) {
+        int slot = find(key);
+        return _used[slot] ? _values[slot] : 0;
+    }
+
+    /** Add DELTA to the value of KEY, inserting KEY if absent. */
+    void add(long key, double delta) {
+        int slot = find(key);
+        if (_used[slot]) {
+            _values[slot] += delta;
+        } else {
+            _used[slot] = true;
+            _keys[slot] = key;
+            _values[slot] = delta;
+            if (++_size > _keys.length >> 1) grow();
+        }
+    }
+
+    /** Return the keys whose values are nonzero, in no particular order. */
+    long[] nonzeroKeys() {
+        int count = 0;
+        for (int i = 0; i < _keys.length; i++) {
+            if (_used[i] && _values[i] != 0) count++;
+        }
+        long[] keys = new long[count];
+        count = 0;
+        for (int i = 0; i < _keys.length; i++) {
+            if (_used[i] && _values[i] != 0) keys[count++] = _keys[i];
+        }
+        return keys;
+    }
+
+    /** Return the slot holding KEY, or the empty slot where it belongs. */
+    private int find(long key) {
+        int mask = _keys.length - 1;
+        int slot = hash(key) & mask;
+        while (_used[slot] && _keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /** Double the capacity and reinsert every key. */
+    private void grow() {
+        long[] keys = _keys;
+        double[] values = _values;
+        boolean[] used = _used;
+        allocate(keys.length << 1);
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                int slot = find(keys[i]);
+                _used[slot] = true;
+                _keys[slot] = keys[i];
+                _values[slot] = values[i];
+            }
+        }
+    }
+
+    /** Replace the table with an empty one of CAPACITY slots. */
+    private void allocate(int capacity) {
+        _keys = new long[capacity];
+        _values = new double[capacity];
+        _used = new boolean[capacity];
+    }
+
+    /** Return a well-mixed hash of KEY, since packed exponents differ
+     * mostly in a few bit fields. */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /** The key in each slot. */
+    private long[] _keys;
+    /** The value in each slot. */
+    private double[] _values;
+    /** Whether each slot holds a key. */
+    private boolean[] _used;
+    /** The number of keys. */
+    private int _size;
+}
@@ -0,0 +1,454 @@
+import java.util.Arrays;
+
+/** A system of ordinary differential equations x' = f(t, x), where each
+ * component of f is a Function of the time and state variables. All
+ * components are compiled into one FProgram, so a stage evaluates the
+ * whole right-hand side in a single allocation-free pass. Non-stiff
+ * systems are integrated with adaptive Dormand-Prince RK45; stiff ones
+ * with an adaptive, variable-step BDF2 whose Newton iterations use the
+ * Jacobian taken symbolically from the components. Batch methods
+ * integrate many initial states in parallel.
+ * @author Joey Zhu
+ */
+public class Ode {
+    /** Default absolute and relative tolerances per step. */
+    private static final double ABS_TOL = 1e-9;
+    private static final double REL_TOL = 1e-9;
+    /** Maximum number of attempted steps per integration. */
+    private static final int MAX_STEPS = 1000000;
+    /** Safety factor and bounds on step size changes. */
+    private static final double SAFETY = 0.9;
+    private static final double MIN_SCALE = 0.2;
+    private static final double MAX_SCALE = 5;
+    /** Maximum modified Newton iterations per implicit step. */
+    private static final int MAX_NEWTON = 5;
+
+    /** Dormand-Prince nodes. */
+    private static final double C2 = 1.0 / 5, C3 = 3.0 / 10, C4 = 4.0 / 5, C5 = 8.0 / 9;
+    /** Dormand-Prince stage coefficients. */
+    private static final double A21 = 1.0 / 5;
+    private static final double A31 = 3.0 / 40, A32 = 9.0 / 40;
+    private static final double A41 = 44.0 / 45, A42 = -56.0 / 15, A43 = 32.0 / 9;
+    private static final double A51 = 19372.0 / 6561, A52 = -25360.0 / 2187,
+            A53 = 64448.0 / 6561, A54 = -212.0 / 729;
+    private static final double A61 = 9017.0 / 3168, A62 = -355.0 / 33,
+            A63 = 46732.0 / 5247, A64 = 49.0 / 176, A65 = -5103.0 / 18656;
+    /** Fifth-order weights, which are also the last stage's coefficients. */
+    private static final double B1 = 35.0 / 384, B3 = 500.0 / 1113, B4 = 125.0 / 192,
+            B5 = -2187.0 / 6784, B6 = 11.0 / 84;
+    /** Differences between the fifth- and fourth-order weights. */
+    private static final double E1 = 71.0 / 57600, E3 = -71.0 / 16695, E4 = 71.0 / 1920,
+            E5 = -17253.0 / 339200, E6 = 22.0 / 525, E7 = -1.0 / 40;
+
+    /** The system with time variable TIME, state variables STATE and
+     * right-hand side components RHS, one per state variable, using the
+     * default tolerances. */
+    public Ode(String time, String[] state, Function... rhs) throws Exception {
+        this(time, state, rhs, ABS_TOL, REL_TOL);
+    }
+
+    /** The system with time variable TIME, state variables STATE and
+     * right-hand side components RHS, keeping each step's local error
+     * below ABSTOL + RELTOL * |x| per component. */
+    public Ode(String time, String[] state, Function[] rhs,
+               double absTol, double relTol) throws Exception {
+        if (rhs.length != state.length) throw new Exception("Dimension mismatch");
+        _vars = new String[state.length + 1];
+        _vars[0] = time;
+        System.arraycopy(state, 0, _vars, 1, state.length);
+        _rhs = rhs;
+        _absTol = absTol;
+        _relTol = relTol;
+        FNode[] roots = new FNode[rhs.length];
+        for (int i = 0; i < rhs.length; i++) roots[i] = rhs[i].getRoot();
+        _program = new FProgram(_vars, roots);
+    }
+
+    /** Return the number of state variables. */
+    public int dimension() {
+        return _rhs.length;
+    }
+
+    /** Return the state at T1 of the trajectory through X0 at T0, by
+     * adaptive Dormand-Prince RK45. */
+    public double[] rk45(double t0, double[] x0, double t1) throws Exception {
+        return new Work().rk45(t0, x0, t1);
+    }
+
+    /** Return the state at T1 of the trajectory through X0 at T0, by
+     * adaptive BDF2. Suited to stiff systems. */
+    public double[] bdf(double t0, double[] x0, double t1) throws Exception {
+        return new Work(jacobian()).bdf(t0, x0, t1);
+    }
+
+    /** Return the states at T1 of the trajectories through each of STARTS
+     * at T0, by RK45 in parallel. Failed trajectories are NaN. */
+    public double[][] rk45(double t0, double[][] starts, double t1) throws Exception {
+        double[][] ends = new double[starts.length][];
+        Parallel.forRange(starts.length, (from, to) -> {
+            Work work = new Work();
+            for (int i = from; i < to; i++) {
+                try {
+                    ends[i] = work.rk45(t0, starts[i], t1);
+                } catch (Exception e) {
+                    ends[i] = failed();
+                }
+            }
+        });
+        return ends;
+    }
+
+    /** Return the states at T1 of the trajectories through each of STARTS
+     * at T0, by BDF2 in parallel. Failed trajectories are NaN. */
+    public double[][] bdf(double t0, double[][] starts, double t1) throws Exception {
+        FProgram jacobian = jacobian();
+        double[][] ends = new double[starts.length][];
+        Parallel.forRange(starts.length, (from, to) -> {
+            Work work = new Work(jacobian);
+            for (int i = from; i < to; i++) {
+                try {
+                    ends[i] = work.bdf(t0, starts[i], t1);
+                } catch (Exception e) {
+                    ends[i] = failed();
+                }
+            }
+        });
+        return ends;
+    }
+
+    /** Return a state of NaNs, marking a failed trajectory. */
+    private double[] failed() {
+        double[] x = new double[_rhs.length];
+        Arrays.fill(x, Double.NaN);
+        return x;
+    }
+
+    /** Return the program computing the Jacobian df_i/dx_j in row-major
+     * order, differentiating and compiling it on first use. Each entry is
+     * taken of a copy of f_i, since Function.derivative rewrites subtrees
+     * of its argument. */
+    private synchronized FProgram jacobian() throws Exception {
+        if (_jacobian == null) {
+            int n = _rhs.length;
+            FNode[] roots = new FNode[n * n];
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    roots[i * n + j] = Function.derivative(new Function(_rhs[i]), _vars[j + 1]).getRoot();
+                }
+            }
+            _jacobian = new FProgram(_vars, roots);
+        }
+        return _jacobian;
+    }
+
+    /** Scratch space for integrating one trajectory at a time, allocated
+     * once so that steps allocate nothing. */
+    private class Work {
+        /** Scratch space for explicit integration. */
+        Work() {
+            int n = _rhs.length;
+            _stack = _program.newStack();
+            _point = new double[n + 1];
+            _k = new double[7][n];
+            _x = new double[n];
+            _y = new double[n];
+        }
+
+        /** Scratch space for implicit integration with JACOBIAN. */
+        Work(FProgram jacobian) {
+            this();
+            int n = _rhs.length;
+            _jprogram = jacobian;
+            _jstack = jacobian.newStack();
+            _jac = new double[n * n];
+            _lu = new double[n * n];
+            _pivot = new int[n];
+        }
+
+        /** Evaluate the right-hand side at T and X into OUT. */
+        void rhs(double t, double[] x, double[] out) throws Exception {
+            _point[0] = t;
+            System.arraycopy(x, 0, _point, 1, x.length);
+            _program.eval(_point, _stack, out);
+        }
+
+        /** Return the scaled RMS norm of error ERR relative to states A and B. */
+        double norm(double[] err, double[] a, double[] b) {
+            double sum = 0;
+            for (int i = 0; i < err.length; i++) {
+                double scale = _absTol + _relTol * Math.max(Math.abs(a[i]), Math.abs(b[i]));
+                sum += (err[i] / scale) * (err[i] / scale);
+            }
+            return Math.sqrt(sum / Math.max(err.length, 1));
+        }
+
+        /** Return an initial step size for the trajectory through X at T
+         * with slope F, towards T1. */
+        double initialStep(double t, double[] x, double[] f, double t1) {
+            double d0 = 0;
+            double d1 = 0;
+            for (int i = 0; i < x.length; i++) {
+                double scale = _absTol + _relTol * Math.abs(x[i]);
+                d0 += (x[i] / scale) * (x[i] / scale);
+                d1 += (f[i] / scale) * (f[i] / scale);
+            }
+            double h = (d0 < 1e-10 || d1 < 1e-10) ? 1e-6 : 0.01 * Math.sqrt(d0 / d1);
+            return Math.copySign(Math.min(h, Math.abs(t1 - t)), t1 - t);
+        }
+
+        /** Dormand-Prince RK45 from X0 at T0 to T1. */
+        double[] rk45(double t0, double[] x0, double t1) throws Exception {
+            int n = x0.length;
+            if (n != _rhs.length) throw new Exception("Dimension mismatch");
+            double[] x = _x, y = _y;
+            double[][] k = _k;
+            System.arraycopy(x0, 0, x, 0, n);
+            double t = t0;
+            if (t1 == t0) return x.clone();
+            rhs(t, x, k[0]);
+            double h = initialStep(t, x, k[0], t1);
+            for (int step = 0; step < MAX_STEPS; step++) {
+                boolean last = Math.abs(h) >= Math.abs(t1 - t);
+                if (last) h = t1 - t;
+                for (int i = 0; i < n; i++) y[i] = x[i] + h * A21 * k[0][i];
+                rhs(t + C2 * h, y, k[1]);
+                for (int i = 0; i < n; i++) {
+                    y[i] = x[i] + h * (A31 * k[0][i] + A32 * k[1][i]);
+                }
+                rhs(t + C3 * h, y, k[2]);
+                for (int i = 0; i < n; i++) {
+                    y[i] = x[i] + h * (A41 * k[0][i] + A42 * k[1][i] + A43 * k[2][i]);
+                }
+                rhs(t + C4 * h, y, k[3]);
+                for (int i = 0; i < n; i++) {
+                    y[i] = x[i] + h * (A51 * k[0][i] + A52 * k[1][i] + A53 * k[2][i]
+                            + A54 * k[3][i]);
+                }
+                rhs(t + C5 * h, y, k[4]);
+                for (int i = 0; i < n; i++) {
+                    y[i] = x[i] + h * (A61 * k[0][i] + A62 * k[1][i] + A63 * k[2][i]
+                            + A64 * k[3][i] + A65 * k[4][i]);
+                }
+                rhs(t + h, y, k[5]);
+                for (int i = 0; i < n; i++) {
+                    y[i] = x[i] + h * (B1 * k[0][i] + B3 * k[2][i] + B4 * k[3][i]
+                            + B5 * k[4][i] + B6 * k[5][i]);
+                }
+                rhs(t + h, y, k[6]);
+                /* Reuse k[1] for the error estimate; it is not needed again. */
+                for (int i = 0; i < n; i++) {
+                    k[1][i] = h * (E1 * k[0][i] + E3 * k[2][i] + E4 * k[3][i]
+                            + E5 * k[4][i] + E6 * k[5][i] + E7 * k[6][i]);
+                }
+                double err = norm(k[1], x, y);
+                if (!Double.isFinite(err)) throw new Exception("Non-finite right-hand side");
+                if (err <= 1) {
+                    t = last ? t1 : t + h;
+                    System.arraycopy(y, 0, x, 0, n);
+                    /* First same as last: the final stage is the next first. */
+                    double[] swap = k[0];
+                    k[0] = k[6];
+                    k[6] = swap;
+                    if (last) return x.clone();
+                }
+                double scale = err == 0 ? MAX_SCALE : SAFETY * Math.pow(err, -0.2);
+                h *= Math.min(MAX_SCALE, Math.max(MIN_SCALE, scale));
+                if (Math.abs(h) <= Math.ulp(t) * 16) throw new Exception("Step size underflow");
+            }
+            throw new Exception("Too many steps");
+        }
+
+        /** Variable-step BDF2 from X0 at T0 to T1, started with one backward
+         * Euler step. Each step solves its implicit equation by modified
+         * Newton with the Jacobian at the predicted state, and estimates its
+         * local error from the distance between predictor and corrector. */
+        double[] bdf(double t0, double[] x0, double t1) throws Exception {
+            int n = x0.length;
+            if (n != _rhs.length) throw new Exception("Dimension mismatch");
+            double[] x = _x, y = _y;
+            double[] prev = _k[0], prev2 = _k[1], pred = _k[2];
+            double[] f = _k[3], g = _k[4], base = _k[5], err = _k[6];
+            System.arraycopy(x0, 0, x, 0, n);
+            double t = t0;
+            if (t1 == t0) return x.clone();
+            rhs(t, x, f);
+            double h = 0.1 * initialStep(t, x, f, t1);
+            double hPrev = 0, hPrev2 = 0;
+            int history = 0;
+
+            for (int step = 0; step < MAX_STEPS; step++) {
+                boolean last = Math.abs(h) >= Math.abs(t1 - t);
+                if (last) h = t1 - t;
+                double tNew = last ? t1 : t + h;
+                double gamma, constant;
+                int order;
+                if (history == 0) {
+                    /* Backward Euler, with an explicit Euler predictor. */
+                    order = 1;
+                    rhs(t, x, f);
+                    for (int i = 0; i < n; i++) {
+                        pred[i] = x[i] + h * f[i];
+                        base[i] = x[i];
+                    }
+                    gamma = 1;
+                    constant = 0.5;
+                } else {
+                    order = 2;
+                    double w = h / hPrev;
+                    double a1 = (1 + w) * (1 + w) / (1 + 2 * w);
+                    double a2 = -w * w / (1 + 2 * w);
+                    gamma = (1 + w) / (1 + 2 * w);
+                    for (int i = 0; i < n; i++) base[i] = a1 * x[i] + a2 * prev[i];
+                    if (history >= 2) {
+                        /* Quadratic extrapolation through the last three states. */
+                        double s0 = 0, s1 = -hPrev, s2 = -hPrev - hPrev2;
+                        double l0 = (h - s1) * (h - s2) / ((s0 - s1) * (s0 - s2));
+                        double l1 = (h - s0) * (h - s2) / ((s1 - s0) * (s1 - s2));
+                        double l2 = (h - s0) * (h - s1) / ((s2 - s0) * (s2 - s1));
+                        for (int i = 0; i < n; i++) {
+                            pred[i] = l0 * x[i] + l1 * prev[i] + l2 * prev2[i];
+                        }
+                        constant = 2.0 / 11;
+                    } else {
+                        for (int i = 0; i < n; i++) pred[i] = x[i] + w * (x[i] - prev[i]);
+                        constant = 0.5;
+                    }
+                }
+
+                boolean converged = newton(tNew, h * gamma, base, pred, y, f, g, err);
+                double errNorm = Double.POSITIVE_INFINITY;
+                if (converged) {
+                    for (int i = 0; i < n; i++) err[i] = constant * (y[i] - pred[i]);
+                    errNorm = norm(err, x, y);
+                    if (!Double.isFinite(errNorm)) throw new Exception("Non-finite right-hand side");
+                }
+                if (errNorm <= 1) {
+                    double[] swap = prev2;
+                    prev2 = prev;
+                    prev = swap;
+                    System.arraycopy(x, 0, prev, 0, n);
+                    System.arraycopy(y, 0, x, 0, n);
+                    hPrev2 = hPrev;
+                    hPrev = h;
+                    history++;
+                    t = tNew;
+                    if (last) return x.clone();
+                }
+                double scale;
+                if (!converged) scale = 0.25;
+                else if (errNorm == 0) scale = 2;
+                else scale = SAFETY * Math.pow(errNorm, -1.0 / (order + 1));
+                h *= Math.min(2, Math.max(MIN_SCALE, scale));
+                if (Math.abs(h) <= Math.ulp(t) * 16) throw new Exception("Step size underflow");
+            }
+            throw new Exception("Too many steps");
+        }
+
+        /** Solve y = BASE + HG * f(T, y) for Y by modified Newton from
+         * PRED, using F, G and DELTA as scratch. Return true iff the
+         * iteration converged; throw if it produces non-finite values. */
+        boolean newton(double t, double hg, double[] base, double[] pred, double[] y,
+                       double[] f, double[] g, double[] delta) throws Exception {
+            int n = y.length;
+            System.arraycopy(pred, 0, y, 0, n);
+            _point[0] = t;
+            System.arraycopy(pred, 0, _point, 1, n);
+            try {
+                _jprogram.eval(_point, _jstack, _jac);
+            } catch (Exception e) {
+                return false;
+            }
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    _lu[i * n + j] = (i == j ? 1 : 0) - hg * _jac[i * n + j];
+                }
+            }
+            if (!factor(n)) return false;
+            for (int iter = 0; iter < MAX_NEWTON; iter++) {
+                try {
+                    rhs(t, y, f);
+                } catch (Exception e) {
+                    return false;
+                }
+                for (int i = 0; i < n; i++) g[i] = base[i] + hg * f[i] - y[i];
+                solve(n, g, delta);
+                for (int i = 0; i < n; i++) y[i] += delta[i];
+                double size = norm(delta, y, pred);
+                if (!Double.isFinite(size)) throw new Exception("Non-finite right-hand side");
+                if (size <= 1e-3) return true;
+            }
+            return false;
+        }
+
+        /** Factor the N by N matrix in _lu in place with partial pivoting.
+         * Return false iff it is singular. */
+        boolean factor(int n) {
+            for (int c = 0; c < n; c++) {
+                int p = c;
+                for (int r = c + 1; r < n; r++) {
+                    if (Math.abs(_lu[r * n + c]) > Math.abs(_lu[p * n + c])) p = r;
+                }
+                if (_lu[p * n + c] == 0) return false;
+                _pivot[c] = p;
+                if (p != c) {
+                    for (int j = 0; j < n; j++) {
+                        double tmp = _lu[c * n + j];
+                        _lu[c * n + j] = _lu[p * n + j];
+                        _lu[p * n + j] = tmp;
+                    }
+                }
+                for (int r = c + 1; r < n; r++) {
+                    double m = _lu[r * n + c] /= _lu[c * n + c];
+                    for (int j = c + 1; j < n; j++) _lu[r * n + j] -= m * _lu[c * n + j];
+                }
+            }
+            return true;
+        }
+
+        /** Solve the factored system for right-hand side B into X. */
+        void solve(int n, double[] b, double[] x) {
+            System.arraycopy(b, 0, x, 0, n);
+            for (int c = 0; c < n; c++) {
+                int p = _pivot[c];
+                if (p != c) {
+                    double tmp = x[c];
+                    x[c] = x[p];
+                    x[p] = tmp;
+                }
+                for (int r = c + 1; r < n; r++) x[r] -= _lu[r * n + c] * x[c];
+            }
+            for (int r = n - 1; r >= 0; r--) {
+                double sum = x[r];
+                for (int j = r + 1; j < n; j++) sum -= _lu[r * n + j] * x[j];
+                x[r] = sum / _lu[r * n + r];
+            }
+        }
+
+        /** The Jacobian program, for implicit integration. */
+        private FProgram _jprogram;
+        /** Scratch stacks of the right-hand side and Jacobian programs. */
+        private final double[] _stack;
+        private double[] _jstack;
+        /** The program input, time followed by state. */
+        private final double[] _point;
+        /** Stage slopes, reused as vectors by BDF. */
+        private final double[][] _k;
+        /** The current and trial states. */
+        private final double[] _x, _y;
+        /** The Jacobian and its LU factorisation, row-major. */
+        private double[] _jac, _lu;
+        /** The row swapped into each column by factor. */
+        private int[] _pivot;
+    }
+
+    /** Time followed by state variables, the input of the programs. */
+    private final String[] _vars;
+    /** The right-hand side components. */
+    private final Function[] _rhs;
+    /** Tolerances on each step's local error. */
+    private final double _absTol, _relTol;
+    /** The fused program computing every right-hand side component. */
+    private final FProgram _program;
+    /** The fused program computing the Jacobian, compiled on first use. */
+    private FProgram _jacobian;
+}
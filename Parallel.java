@@ -0,0 +1,70 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Helpers for spreading independent work across the common pool,
+ * rethrowing the first failure to the caller.
+ * @author Joey Zhu
+ */
+class Parallel {
+    /** Work over the half-open index range [FROM, TO). */
+    interface Range {
+        void run(int from, int to) throws Exception;
+    }
+
+    /** Split [0, N) into about one contiguous chunk per core and run BODY
+     * on each chunk in parallel. Chunks let BODY allocate its scratch
+     * space once rather than per index. */
+    static void forRange(int n, Range body) throws Exception {
+        int chunks = Math.min(n, ForkJoinPool.getCommonPoolParallelism());
+        if (chunks <= 1) {
+            if (n > 0) body.run(0, n);
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int c = 0; c < chunks; c++) {
+            int from = (int) ((long) c * n / chunks);
+            int to = (int) ((long) (c + 1) * n / chunks);
+            tasks.add(() -> {
+                body.run(from, to);
+                return null;
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    /** Run TASKS on the common pool and wait for all of them. Failures
+     * are recorded as the tasks throw them, since the pool wraps checked
+     * exceptions before they reach Future.get. */
+    static void invokeAll(List<Callable<Void>> tasks) throws Exception {
+        if (tasks.size() == 1) {
+            tasks.get(0).call();
+            return;
+        }
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Callable<Void>> recorded = new ArrayList<>();
+        for (Callable<Void> task : tasks) {
+            recorded.add(() -> {
+                try {
+                    return task.call();
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                    return null;
+                }
+            });
+        }
+        for (Future<Void> future : ForkJoinPool.commonPool().invokeAll(recorded)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error) throw (Error) e.getCause();
+                throw e;
+            }
+        }
+        if (failure.get() != null) throw failure.get();
+    }
+}
@@ -0,0 +1,328 @@
+import java.util.Arrays;
+
+/** An immutable sparse polynomial in several variables. Each term's
+ * exponent vector is packed into the bit fields of one long key, so that
+ * multiplying monomials is adding keys, and terms are accumulated in a
+ * primitive hash map. Terms are kept sorted by key, which orders them
+ * lexicographically by exponent with the first variable most
+ * significant. Converts to and from FNode trees, so polynomial models
+ * can be expanded, combined and differentiated without going through
+ * tree simplification.
+ * @author Joey Zhu
+ */
+public class Polynomial {
+    /** Standard lisp tokens for function input. */
+    private static final String ADD_TOKEN = "+";
+    private static final String SUB_TOKEN = "-";
+    private static final String MUL_TOKEN = "*";
+    private static final String DIV_TOKEN = "/";
+    private static final String POW_TOKEN = "pow";
+
+    /** Maximum bits per exponent field. */
+    private static final int MAX_BITS = 31;
+
+    /** The zero polynomial in VARS. */
+    public Polynomial(String[] vars) {
+        this(vars, new long[0], new double[0]);
+    }
+
+    /** Return the monomial in VARS with coefficient COEF and EXPONENTS,
+     * one per variable. */
+    public static Polynomial monomial(String[] vars, double coef, int[] exponents) throws Exception {
+        if (exponents.length != vars.length) throw new Exception("Dimension mismatch");
+        if (coef == 0) return new Polynomial(vars);
+        return new Polynomial(vars, new long[] { pack(vars.length, exponents) }, new double[] { coef });
+    }
+
+    /** The expansion of F, which must be built from constants, variables,
+     * +, -, *, division by constants and non-negative integer powers. */
+    public Polynomial(Function f) throws Exception {
+        this(fromNode(f.getVars(), f.getRoot()));
+    }
+
+    /** A copy of P. */
+    private Polynomial(Polynomial p) {
+        this(p._vars, p._keys, p._coefs);
+    }
+
+    /** The polynomial in VARS with sorted KEYS and nonzero COEFS. */
+    private Polynomial(String[] vars, long[] keys, double[] coefs) {
+        _vars = vars;
+        _bits = bits(vars.length);
+        _keys = keys;
+        _coefs = coefs;
+    }
+
+    /** The polynomial in VARS with the nonzero terms of TERMS. */
+    private Polynomial(String[] vars, LongDoubleMap terms) {
+        _vars = vars;
+        _bits = bits(vars.length);
+        _keys = terms.nonzeroKeys();
+        Arrays.sort(_keys);
+        _coefs = new double[_keys.length];
+        for (int i = 0; i < _keys.length; i++) _coefs[i] = terms.get(_keys[i]);
+    }
+
+    /** Return the polynomial described by expression tree NODE in VARS. */
+    public static Polynomial fromNode(String[] vars, FNode node) throws Exception {
+        String token = node.getToken();
+        if (node.isAtom()) {
+            int[] exponents = new int[vars.length];
+            for (int i = 0; i < vars.length; i++) {
+                if (vars[i].equals(token)) {
+                    exponents[i] = 1;
+                    return monomial(vars, 1, exponents);
+                }
+            }
+            return monomial(vars, constant(node), exponents);
+        } else if (node.isBinary()) {
+            Polynomial left = fromNode(vars, node.getLeft());
+            if (token.equals(POW_TOKEN)) {
+                double e = constant(node.getRight());
+                if (e < 0 || e != Math.rint(e) || e > Integer.MAX_VALUE) {
+                    throw new Exception("Not a polynomial");
+                }
+                return left.pow((int) e);
+            } else if (token.equals(DIV_TOKEN)) {
+                double c = constant(node.getRight());
+                if (c == 0) throw new Exception("Divide by zero");
+                return left.scale(1 / c);
+            }
+            Polynomial right = fromNode(vars, node.getRight());
+            if (token.equals(ADD_TOKEN)) return left.add(right);
+            else if (token.equals(SUB_TOKEN)) return left.subtract(right);
+            else if (token.equals(MUL_TOKEN)) return left.multiply(right);
+        }
+        throw new Exception("Not a polynomial");
+    }
+
+    /** Return the value of constant leaf NODE. */
+    private static double constant(FNode node) throws Exception {
+        if (!node.isAtom()) throw new Exception("Not a polynomial");
+        try {
+            return Double.parseDouble(node.getToken());
+        } catch (NumberFormatException e) {
+            throw new Exception("Not a polynomial");
+        }
+    }
+
+    /** Return this + OTHER, merging the sorted term lists. */
+    public Polynomial add(Polynomial other) throws Exception {
+        return combine(other, 1);
+    }
+
+    /** Return this - OTHER. */
+    public Polynomial subtract(Polynomial other) throws Exception {
+        return combine(other, -1);
+    }
+
+    /** Return this + SIGN * OTHER. */
+    private Polynomial combine(Polynomial other, double sign) throws Exception {
+        checkVars(other);
+        long[] keys = new long[_keys.length + other._keys.length];
+        double[] coefs = new double[keys.length];
+        int i = 0, j = 0, n = 0;
+        while (i < _keys.length || j < other._keys.length) {
+            long key;
+            double coef;
+            if (j == other._keys.length || (i < _keys.length && _keys[i] < other._keys[j])) {
+                key = _keys[i];
+                coef = _coefs[i++];
+            } else if (i == _keys.length || other._keys[j] < _keys[i]) {
+                key = other._keys[j];
+                coef = sign * other._coefs[j++];
+            } else {
+                key = _keys[i];
+                coef = _coefs[i++] + sign * other._coefs[j++];
+            }
+            if (coef != 0) {
+                keys[n] = key;
+                coefs[n++] = coef;
+            }
+        }
+        return new Polynomial(_vars, Arrays.copyOf(keys, n), Arrays.copyOf(coefs, n));
+    }
+
+    /** Return this * OTHER, accumulating every pairwise product of terms
+     * into a hash map keyed by the sum of their packed exponents. */
+    public Polynomial multiply(Polynomial other) throws Exception {
+        checkVars(other);
+        int[] degrees = degrees();
+        int[] otherDegrees = other.degrees();
+        long limit = (1L << _bits) - 1;
+        for (int v = 0; v < _vars.length; v++) {
+            if ((long) degrees[v] + otherDegrees[v] > limit) throw new Exception("Exponent overflow");
+        }
+        LongDoubleMap terms = new LongDoubleMap(_keys.length + other._keys.length);
+        for (int i = 0; i < _keys.length; i++) {
+            for (int j = 0; j < other._keys.length; j++) {
+                terms.add(_keys[i] + other._keys[j], _coefs[i] * other._coefs[j]);
+            }
+        }
+        return new Polynomial(_vars, terms);
+    }
+
+    /** Return this times constant C. */
+    public Polynomial scale(double c) {
+        if (c == 0) return new Polynomial(_vars);
+        double[] coefs = new double[_coefs.length];
+        for (int i = 0; i < coefs.length; i++) coefs[i] = c * _coefs[i];
+        return new Polynomial(_vars, _keys, coefs);
+    }
+
+    /** Return this to the power E, by repeated squaring. */
+    public Polynomial pow(int e) throws Exception {
+        Polynomial result = monomial(_vars, 1, new int[_vars.length]);
+        Polynomial base = this;
+        while (e > 0) {
+            if ((e & 1) == 1) result = result.multiply(base);
+            e >>= 1;
+            if (e > 0) base = base.multiply(base);
+        }
+        return result;
+    }
+
+    /** Return the partial derivative w.r.t. variable X. */
+    public Polynomial derivative(String x) throws Exception {
+        int v = index(x);
+        if (v == -1) return new Polynomial(_vars);
+        int shift = shift(v);
+        long mask = (1L << _bits) - 1;
+        long[] keys = new long[_keys.length];
+        double[] coefs = new double[_keys.length];
+        int n = 0;
+        for (int i = 0; i < _keys.length; i++) {
+            long e = (_keys[i] >>> shift) & mask;
+            if (e > 0) {
+                keys[n] = _keys[i] - (1L << shift);
+                coefs[n++] = e * _coefs[i];
+            }
+        }
+        /* Lowering one field by one keeps the keys in order. */
+        return new Polynomial(_vars, Arrays.copyOf(keys, n), Arrays.copyOf(coefs, n));
+    }
+
+    /** Return the evaluation when setting values for corresponding
+     * VARS this polynomial was built with. */
+    public double eval(double[] vars) {
+        int[] degrees = degrees();
+        double[][] powers = new double[_vars.length][];
+        for (int v = 0; v < _vars.length; v++) {
+            powers[v] = new double[degrees[v] + 1];
+            powers[v][0] = 1;
+            for (int e = 1; e <= degrees[v]; e++) powers[v][e] = powers[v][e - 1] * vars[v];
+        }
+        long mask = (1L << _bits) - 1;
+        double sum = 0;
+        for (int i = 0; i < _keys.length; i++) {
+            double term = _coefs[i];
+            for (int v = 0; v < _vars.length; v++) {
+                term *= powers[v][(int) ((_keys[i] >>> shift(v)) & mask)];
+            }
+            sum += term;
+        }
+        return sum;
+    }
+
+    /** Return an expression tree of this polynomial as a sum of terms. */
+    public FNode toNode() {
+        FNode sum = null;
+        for (int i = 0; i < _keys.length; i++) {
+            FNode term = null;
+            for (int v = _vars.length - 1; v >= 0; v--) {
+                int e = exponent(_keys[i], v);
+                if (e == 0) continue;
+                FNode factor = e == 1 ? new FNode(_vars[v])
+                        : new FNode(POW_TOKEN, new FNode(_vars[v]), new FNode(Integer.toString(e)));
+                term = term == null ? factor : new FNode(MUL_TOKEN, factor, term);
+            }
+            FNode coef = new FNode(Double.toString(_coefs[i]));
+            term = term == null ? coef : new FNode(MUL_TOKEN, coef, term);
+            sum = sum == null ? term : new FNode(ADD_TOKEN, term, sum);
+        }
+        return sum == null ? new FNode("0") : sum;
+    }
+
+    /** Return this polynomial as a Function of its variables. */
+    public Function toFunction() {
+        return new Function(_vars, toNode());
+    }
+
+    /** Return the number of nonzero terms. */
+    public int size() {
+        return _keys.length;
+    }
+
+    /** Return the variables this polynomial was built with. */
+    public String[] getVars() {
+        return _vars;
+    }
+
+    /** Return the highest exponent of each variable. */
+    public int[] degrees() {
+        int[] degrees = new int[_vars.length];
+        for (long key : _keys) {
+            for (int v = 0; v < _vars.length; v++) {
+                degrees[v] = Math.max(degrees[v], exponent(key, v));
+            }
+        }
+        return degrees;
+    }
+
+    @Override
+    public String toString() {
+        return toNode().toString();
+    }
+
+    /** Return the exponent of variable V in KEY. */
+    private int exponent(long key, int v) {
+        return (int) ((key >>> shift(v)) & ((1L << _bits) - 1));
+    }
+
+    /** Return the bit offset of variable V's field, with the first
+     * variable in the most significant field. */
+    private int shift(int v) {
+        return (_vars.length - 1 - v) * _bits;
+    }
+
+    /** Return the field width for N variables. Keys stay non-negative,
+     * so signed order is exponent order. */
+    private static int bits(int n) {
+        return n == 0 ? MAX_BITS : Math.min(MAX_BITS, 63 / n);
+    }
+
+    /** Return EXPONENTS of N variables packed into a key. */
+    private static long pack(int n, int[] exponents) throws Exception {
+        int bits = bits(n);
+        long key = 0;
+        for (int v = 0; v < exponents.length; v++) {
+            if (exponents[v] < 0 || exponents[v] >= 1L << bits) {
+                throw new Exception("Exponent overflow");
+            }
+            key |= (long) exponents[v] << ((n - 1 - v) * bits);
+        }
+        return key;
+    }
+
+    /** Throw unless OTHER has the same variables as this. */
+    private void checkVars(Polynomial other) throws Exception {
+        if (!Arrays.equals(_vars, other._vars)) throw new Exception("Variable mismatch");
+    }
+
+    /** Return the array index of VAR, or -1 if it is not a variable. */
+    private int index(String var) {
+        for (int i = 0; i < _vars.length; i++) {
+            if (_vars[i].equals(var)) return i;
+        }
+        return -1;
+    }
+
+    /** The variables of this polynomial. */
+    private final String[] _vars;
+    /** The width of each exponent field of a key. */
+    private final int _bits;
+    /** The packed exponents of each term, in increasing order. */
+    private final long[] _keys;
+    /** The coefficient of each term. */
+    private final double[] _coefs;
+}
@@ -0,0 +1,320 @@
+import java.util.Arrays;
+
+/** Root finding and minimisation of a Function using its symbolic
+ * derivatives. The derivatives are taken once, when first needed, and
+ * compiled together with the function into a single FProgram so that
+ * each iteration evaluates value and derivatives in one pass. Batch
+ * methods solve from many starting points in parallel, reporting NaN
+ * for starts that fail to converge.
+ * @author Joey Zhu
+ */
+public class Solver {
+    /** Default relative tolerance on the solution. */
+    private static final double TOL = 1e-12;
+    /** Maximum iterations of the root finders. */
+    private static final int MAX_ITER = 100;
+    /** Maximum iterations of the minimiser. */
+    private static final int MAX_MIN_ITER = 1000;
+    /** Number of correction pairs L-BFGS remembers. */
+    private static final int HISTORY = 8;
+    /** Sufficient decrease constant of the Armijo line search. */
+    private static final double ARMIJO = 1e-4;
+    /** Maximum step halvings of the line search. */
+    private static final int MAX_BACKTRACK = 60;
+
+    /** A solver for F with the default tolerance. */
+    public Solver(Function f) {
+        this(f, TOL);
+    }
+
+    /** A solver for F that stops once steps fall below relative
+     * tolerance TOL. */
+    public Solver(Function f, double tol) {
+        _f = f;
+        _tol = tol;
+    }
+
+    /** Return a root of single-variable F found by Newton's method
+     * from X0. */
+    public double newton(double x0) throws Exception {
+        return newton(x0, newtonProgram(), newtonProgram().newStack(), new double[2]);
+    }
+
+    /** Return a root of single-variable F found by Halley's method
+     * from X0. */
+    public double halley(double x0) throws Exception {
+        return halley(x0, halleyProgram(), halleyProgram().newStack(), new double[3]);
+    }
+
+    /** Return the roots found by Newton's method from each of STARTS. */
+    public double[] newton(double[] starts) throws Exception {
+        FProgram program = newtonProgram();
+        double[] roots = new double[starts.length];
+        Parallel.forRange(starts.length, (from, to) -> {
+            double[] stack = program.newStack();
+            double[] out = new double[2];
+            for (int i = from; i < to; i++) {
+                try {
+                    roots[i] = newton(starts[i], program, stack, out);
+                } catch (Exception e) {
+                    roots[i] = Double.NaN;
+                }
+            }
+        });
+        return roots;
+    }
+
+    /** Return the roots found by Halley's method from each of STARTS. */
+    public double[] halley(double[] starts) throws Exception {
+        FProgram program = halleyProgram();
+        double[] roots = new double[starts.length];
+        Parallel.forRange(starts.length, (from, to) -> {
+            double[] stack = program.newStack();
+            double[] out = new double[3];
+            for (int i = from; i < to; i++) {
+                try {
+                    roots[i] = halley(starts[i], program, stack, out);
+                } catch (Exception e) {
+                    roots[i] = Double.NaN;
+                }
+            }
+        });
+        return roots;
+    }
+
+    /** Return a local minimum of F found by L-BFGS from X0. */
+    public double[] minimize(double[] x0) throws Exception {
+        FProgram program = gradientProgram();
+        return minimize(x0, program, program.newStack());
+    }
+
+    /** Return the local minima found by L-BFGS from each of STARTS. */
+    public double[][] minimize(double[][] starts) throws Exception {
+        FProgram program = gradientProgram();
+        double[][] minima = new double[starts.length][];
+        Parallel.forRange(starts.length, (from, to) -> {
+            double[] stack = program.newStack();
+            for (int i = from; i < to; i++) {
+                try {
+                    minima[i] = minimize(starts[i], program, stack);
+                } catch (Exception e) {
+                    minima[i] = new double[starts[i].length];
+                    Arrays.fill(minima[i], Double.NaN);
+                }
+            }
+        });
+        return minima;
+    }
+
+    /** Newton iteration from X with PROGRAM computing {f, f'}, using
+     * STACK and OUT as scratch space. A small step is only accepted once
+     * |f| at its end is no larger than before it. */
+    private double newton(double x, FProgram program, double[] stack, double[] out) throws Exception {
+        double[] point = new double[1];
+        double last = Double.POSITIVE_INFINITY;
+        boolean small = false;
+        for (int i = 0; i < MAX_ITER; i++) {
+            point[0] = x;
+            program.eval(point, stack, out);
+            if (out[0] == 0) return x;
+            if (small && Math.abs(out[0]) <= last) return x;
+            if (out[1] == 0) throw new Exception("Zero derivative");
+            double step = out[0] / out[1];
+            last = Math.abs(out[0]);
+            x -= step;
+            small = Math.abs(step) <= _tol * (1 + Math.abs(x));
+        }
+        throw new Exception("Did not converge");
+    }
+
+    /** Halley iteration from X with PROGRAM computing {f, f', f''},
+     * using STACK and OUT as scratch space. A small step is only accepted
+     * once |f| at its end is no larger than before it. */
+    private double halley(double x, FProgram program, double[] stack, double[] out) throws Exception {
+        double[] point = new double[1];
+        double last = Double.POSITIVE_INFINITY;
+        boolean small = false;
+        for (int i = 0; i < MAX_ITER; i++) {
+            point[0] = x;
+            program.eval(point, stack, out);
+            double f = out[0], df = out[1], ddf = out[2];
+            if (f == 0) return x;
+            if (small && Math.abs(f) <= last) return x;
+            if (df == 0) throw new Exception("Zero derivative");
+            double denom = 2 * df * df - f * ddf;
+            if (denom == 0) throw new Exception("Zero derivative");
+            double step = 2 * f * df / denom;
+            last = Math.abs(f);
+            x -= step;
+            small = Math.abs(step) <= _tol * (1 + Math.abs(x));
+        }
+        throw new Exception("Did not converge");
+    }
+
+    /** L-BFGS from X0 with PROGRAM computing {f, grad f}, using STACK as
+     * scratch space. Steps are chosen by backtracking until the Armijo
+     * condition holds; trial points where F cannot be evaluated are
+     * treated as uphill. */
+    private double[] minimize(double[] x0, FProgram program, double[] stack) throws Exception {
+        int n = x0.length;
+        if (n != program.arity()) throw new Exception("Dimension mismatch");
+        double[] x = x0.clone();
+        double[] out = new double[n + 1];
+        program.eval(x, stack, out);
+        double fx = out[0];
+        double[] g = Arrays.copyOfRange(out, 1, n + 1);
+        double[][] s = new double[HISTORY][n];
+        double[][] y = new double[HISTORY][n];
+        double[] rho = new double[HISTORY];
+        double[] alpha = new double[HISTORY];
+        double[] d = new double[n];
+        double[] trial = new double[n];
+        int stored = 0;
+        int newest = -1;
+
+        for (int iter = 0; iter < MAX_MIN_ITER; iter++) {
+            if (norm(g) <= _tol * Math.max(1, Math.abs(fx))) return x;
+
+            /* Two-loop recursion for d = -H g. */
+            System.arraycopy(g, 0, d, 0, n);
+            for (int k = 0; k < stored; k++) {
+                int j = Math.floorMod(newest - k, HISTORY);
+                alpha[j] = rho[j] * dot(s[j], d);
+                axpy(-alpha[j], y[j], d);
+            }
+            if (stored > 0) {
+                double scale = dot(s[newest], y[newest]) / dot(y[newest], y[newest]);
+                for (int i = 0; i < n; i++) d[i] *= scale;
+            } else {
+                double scale = 1 / Math.max(norm(g), 1);
+                for (int i = 0; i < n; i++) d[i] *= scale;
+            }
+            for (int k = stored - 1; k >= 0; k--) {
+                int j = Math.floorMod(newest - k, HISTORY);
+                double beta = rho[j] * dot(y[j], d);
+                axpy(alpha[j] - beta, s[j], d);
+            }
+            for (int i = 0; i < n; i++) d[i] = -d[i];
+            double slope = dot(g, d);
+            if (slope >= 0) {
+                /* Not a descent direction; restart from steepest descent. */
+                for (int i = 0; i < n; i++) d[i] = -g[i];
+                slope = dot(g, d);
+                stored = 0;
+            }
+
+            double step = 1;
+            boolean accepted = false;
+            for (int b = 0; b < MAX_BACKTRACK && !accepted; b++, step *= 0.5) {
+                for (int i = 0; i < n; i++) trial[i] = x[i] + step * d[i];
+                try {
+                    program.eval(trial, stack, out);
+                    accepted = out[0] <= fx + ARMIJO * step * slope;
+                } catch (Exception e) {
+                    accepted = false;
+                }
+            }
+            if (!accepted) return x;
+
+            int next = (newest + 1) % HISTORY;
+            double change = 0;
+            for (int i = 0; i < n; i++) {
+                s[next][i] = trial[i] - x[i];
+                y[next][i] = out[i + 1] - g[i];
+                change = Math.max(change, Math.abs(s[next][i]) / (1 + Math.abs(trial[i])));
+                x[i] = trial[i];
+                g[i] = out[i + 1];
+            }
+            fx = out[0];
+            double sy = dot(s[next], y[next]);
+            if (sy > 0) {
+                /* Only keep pairs that preserve positive definiteness. */
+                rho[next] = 1 / sy;
+                newest = next;
+                stored = Math.min(stored + 1, HISTORY);
+            } else {
+                /* The rejected pair overwrote the oldest one. */
+                stored = Math.min(stored, HISTORY - 1);
+            }
+            if (change <= _tol) return x;
+        }
+        throw new Exception("Did not converge");
+    }
+
+    /** Return the program computing {f, f'}, compiling it on first use. */
+    private synchronized FProgram newtonProgram() throws Exception {
+        if (_newton == null) {
+            single();
+            _newton = new FProgram(_f.getVars(), _f.getRoot(), firstDerivative().getRoot());
+        }
+        return _newton;
+    }
+
+    /** Return the program computing {f, f', f''}, compiling it on first use. */
+    private synchronized FProgram halleyProgram() throws Exception {
+        if (_halley == null) {
+            single();
+            if (_second == null) {
+                _second = Function.derivative(new Function(firstDerivative()), _f.getVars()[0]);
+            }
+            _halley = new FProgram(_f.getVars(), _f.getRoot(),
+                    firstDerivative().getRoot(), _second.getRoot());
+        }
+        return _halley;
+    }
+
+    /** Return the program computing {f, grad f}, compiling it on first use. */
+    private synchronized FProgram gradientProgram() throws Exception {
+        if (_gradient == null) {
+            String[] vars = _f.getVars();
+            FNode[] roots = new FNode[vars.length + 1];
+            roots[0] = _f.getRoot();
+            for (int i = 0; i < vars.length; i++) {
+                roots[i + 1] = Function.derivative(new Function(_f), vars[i]).getRoot();
+            }
+            _gradient = new FProgram(vars, roots);
+        }
+        return _gradient;
+    }
+
+    /** Return f', taking the derivative on first use. Derivatives are
+     * taken of copies, since Function.derivative shares and rewrites
+     * subtrees of its argument. */
+    private Function firstDerivative() {
+        if (_first == null) _first = Function.derivative(new Function(_f), _f.getVars()[0]);
+        return _first;
+    }
+
+    /** Throw unless F is a function of a single variable. */
+    private void single() throws Exception {
+        if (_f.getVars().length != 1) throw new Exception("Dimension mismatch");
+    }
+
+    /** Return the dot product of A and B. */
+    private static double dot(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) sum += a[i] * b[i];
+        return sum;
+    }
+
+    /** Add A times X to Y. */
+    private static void axpy(double a, double[] x, double[] y) {
+        for (int i = 0; i < y.length; i++) y[i] += a * x[i];
+    }
+
+    /** Return the infinity norm of A. */
+    private static double norm(double[] a) {
+        double max = 0;
+        for (double v : a) max = Math.max(max, Math.abs(v));
+        return max;
+    }
+
+    /** The function being solved. */
+    private final Function _f;
+    /** The relative tolerance on the solution. */
+    private final double _tol;
+    /** The first and second derivatives of a single-variable F. */
+    private Function _first, _second;
+    /** Compiled programs of F with its derivatives. */
+    private FProgram _newton, _halley, _gradient;
+}
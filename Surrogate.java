@@ -0,0 +1,205 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/** A piecewise Chebyshev approximation of a single-variable Function on
+ * an interval, accurate to a requested tolerance. The tolerance is
+ * absolute where |f| is below 1 and relative to |f| elsewhere, so large
+ * functions can be fitted without losing accuracy where f is small. Each piece is
+ * fitted on Chebyshev points of increasing degree and bisected when the
+ * expansion fails to converge, so pieces stay small only where the
+ * function is hard. Evaluation costs one binary search and a Clenshaw
+ * recurrence, regardless of the size of the original expression tree.
+ * @author Joey Zhu
+ */
+public class Surrogate {
+    /** Number of Chebyshev points of the first fit on each piece. */
+    private static final int MIN_POINTS = 9;
+    /** Number of Chebyshev points above which a piece is bisected. */
+    private static final int MAX_POINTS = 129;
+    /** Number of trailing coefficients that must be negligible. */
+    private static final int TAIL = 4;
+    /** Maximum bisections of the domain. */
+    private static final int MAX_DEPTH = 50;
+    /** Smallest tolerance that double precision can honour. */
+    private static final double MIN_TOL = 64 * Math.ulp(1.0);
+
+    /** Fit F on [A, B] to within TOL * max(1, |f(x)|) at each x. */
+    public Surrogate(Function f, double a, double b, double tol) throws Exception {
+        if (f.getVars().length != 1) throw new Exception("Dimension mismatch");
+        if (!(a < b)) throw new Exception("Empty domain");
+        if (!(tol >= MIN_TOL)) throw new Exception("Tolerance below machine precision");
+        FProgram program = f.compile();
+        List<Double> breaks = new ArrayList<>();
+        List<double[]> coefs = new ArrayList<>();
+        breaks.add(a);
+        fit(program, program.newStack(), a, b, tol, 0, breaks, coefs);
+        _breaks = new double[breaks.size()];
+        for (int i = 0; i < _breaks.length; i++) _breaks[i] = breaks.get(i);
+        _coefs = coefs.toArray(new double[0][]);
+    }
+
+    /** Return the approximation at X. */
+    public double eval(double x) throws Exception {
+        if (x < _breaks[0] || x > _breaks[_breaks.length - 1]) {
+            throw new Exception("Outside domain");
+        }
+        int lo = 0;
+        int hi = _coefs.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (x >= _breaks[mid]) lo = mid;
+            else hi = mid - 1;
+        }
+        double a = _breaks[lo];
+        double b = _breaks[lo + 1];
+        return clenshaw(_coefs[lo], (2 * x - a - b) / (b - a));
+    }
+
+    /** Return the approximation at the single value in VARS, so that a
+     * Surrogate can stand in for the Function it was fitted to. */
+    public double eval(double[] vars) throws Exception {
+        return eval(vars[0]);
+    }
+
+    /** Evaluate at each row of POINTS, writing the results into OUT. */
+    public void eval(double[][] points, double[] out) throws Exception {
+        for (int i = 0; i < points.length; i++) {
+            out[i] = eval(points[i][0]);
+        }
+    }
+
+    /** Return the number of pieces. */
+    public int pieces() {
+        return _coefs.length;
+    }
+
+    /** Return the highest polynomial degree over all pieces. */
+    public int degree() {
+        int max = 0;
+        for (double[] c : _coefs) max = Math.max(max, c.length - 1);
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "Surrogate on [" + _breaks[0] + ", " + _breaks[_breaks.length - 1] + "]: "
+                + pieces() + " pieces, degree " + degree();
+    }
+
+    /** Fit PROGRAM on [A, B] to within TOL, relative to |f| where it
+     * exceeds 1, at bisection DEPTH, appending
+     * the right endpoint of each piece to BREAKS and its coefficients to
+     * COEFS from left to right. STACK is scratch space for PROGRAM. */
+    private static void fit(FProgram program, double[] stack, double a, double b, double tol,
+                            int depth, List<Double> breaks, List<double[]> coefs) throws Exception {
+        for (int n = MIN_POINTS; n <= MAX_POINTS; n = 2 * n - 1) {
+            double[] values = sample(program, stack, a, b, n);
+            /* Truncation error is spread over the piece, so it must be
+             * bounded by the tolerance where |f| is smallest. */
+            double scale = Double.POSITIVE_INFINITY;
+            for (double v : values) {
+                if (!Double.isFinite(v)) throw new Exception("Non-finite value on [" + a + ", " + b + "]");
+                scale = Math.min(scale, Math.max(1, Math.abs(v)));
+            }
+            double scaled = tol * scale;
+            double[] c = coefficients(values);
+            double tail = 0;
+            for (int k = n - TAIL; k < n; k++) tail += Math.abs(c[k]);
+            if (tail <= 0.25 * scaled) {
+                c = trim(c, 0.5 * scaled);
+                if (check(program, stack, a, b, n, c, tol)) {
+                    breaks.add(b);
+                    coefs.add(c);
+                    return;
+                }
+            }
+        }
+        double mid = 0.5 * (a + b);
+        if (depth >= MAX_DEPTH || mid <= a || mid >= b) {
+            throw new Exception("Could not resolve function near " + mid);
+        }
+        fit(program, stack, a, mid, tol, depth + 1, breaks, coefs);
+        fit(program, stack, mid, b, tol, depth + 1, breaks, coefs);
+    }
+
+    /** Return PROGRAM's values at the N Chebyshev extreme points of
+     * [A, B], from B down to A. */
+    private static double[] sample(FProgram program, double[] stack, double a, double b, int n)
+            throws Exception {
+        double[] values = new double[n];
+        double[] point = new double[1];
+        for (int j = 0; j < n; j++) {
+            point[0] = map(Math.cos(Math.PI * j / (n - 1)), a, b);
+            values[j] = program.eval(point, stack);
+        }
+        return values;
+    }
+
+    /** Return the Chebyshev coefficients of the polynomial interpolating
+     * VALUES at the Chebyshev extreme points. */
+    private static double[] coefficients(double[] values) {
+        int n = values.length;
+        double[] c = new double[n];
+        for (int k = 0; k < n; k++) {
+            double sum = 0.5 * (values[0] + (k % 2 == 0 ? 1 : -1) * values[n - 1]);
+            for (int j = 1; j < n - 1; j++) {
+                sum += values[j] * Math.cos(Math.PI * j * k / (n - 1));
+            }
+            c[k] = 2 * sum / (n - 1);
+        }
+        c[0] *= 0.5;
+        c[n - 1] *= 0.5;
+        return c;
+    }
+
+    /** Return C without the trailing coefficients whose absolute values
+     * sum to at most TOL. */
+    private static double[] trim(double[] c, double tol) {
+        int length = c.length;
+        double dropped = 0;
+        while (length > 1 && dropped + Math.abs(c[length - 1]) <= tol) {
+            dropped += Math.abs(c[--length]);
+        }
+        double[] trimmed = new double[length];
+        System.arraycopy(c, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    /** Return true iff expansion C agrees with PROGRAM on [A, B] to within
+     * TOL * max(1, |f|) at the N - 1 points halfway between the fitted
+     * ones. */
+    private static boolean check(FProgram program, double[] stack, double a, double b,
+                                 int n, double[] c, double tol) throws Exception {
+        double[] point = new double[1];
+        for (int j = 0; j < n - 1; j++) {
+            double t = Math.cos(Math.PI * (j + 0.5) / (n - 1));
+            point[0] = map(t, a, b);
+            double f = program.eval(point, stack);
+            if (Math.abs(f - clenshaw(c, t)) > tol * Math.max(1, Math.abs(f))) return false;
+        }
+        return true;
+    }
+
+    /** Return the Chebyshev series C at T in [-1, 1]. */
+    private static double clenshaw(double[] c, double t) {
+        double b1 = 0;
+        double b2 = 0;
+        double t2 = 2 * t;
+        for (int k = c.length - 1; k >= 1; k--) {
+            double b0 = c[k] + t2 * b1 - b2;
+            b2 = b1;
+            b1 = b0;
+        }
+        return c[0] + t * b1 - b2;
+    }
+
+    /** Return T in [-1, 1] mapped onto [A, B]. */
+    private static double map(double t, double a, double b) {
+        return 0.5 * (a + b) + 0.5 * (b - a) * t;
+    }
+
+    /** The endpoints of the pieces, in increasing order. */
+    private final double[] _breaks;
+    /** The Chebyshev coefficients of each piece. */
+    private final double[][] _coefs;
+}